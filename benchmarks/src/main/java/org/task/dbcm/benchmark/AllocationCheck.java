@@ -0,0 +1,106 @@
+package org.task.dbcm.benchmark;
+
+import org.task.dbcm.connectionmanager.ConnectionManagedDataSource;
+import org.task.dbcm.connectionmanager.ConnectionManagedDataSourceFactory;
+import org.task.dbcm.connectionmanager.HealthCheckScheduler;
+import org.task.dbcm.connectionmanager.datasource.CloseableDataSourceFactory;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
+
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bytes allocated by the borrowing thread per borrow and return of a connection, with the thread
+ * allocation counter of {@link com.sun.management.ThreadMXBean}. After a warm-up, which lets the JIT compile
+ * the path and the pool reach its steady state, the borrow/return path has to allocate nothing but the handle
+ * every borrow gets, a single object of a reference and a long.
+ * <p>
+ * Run with {@code java -cp benchmarks/target/benchmarks.jar org.task.dbcm.benchmark.AllocationCheck}.
+ * The exit status is 1 if any of the checked paths allocates more.
+ */
+public final class AllocationCheck {
+    private static final int WARM_UP_BORROWS = 200_000;
+    private static final int MEASURED_BORROWS = 100_000;
+    /**
+     * The size of the borrow handle without compressed references, with them it takes 24 bytes.
+     */
+    private static final int MAX_BYTES_PER_BORROW = 32;
+
+    private AllocationCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        ConnectionPoolConfig connectionPoolConfig = ConnectionPoolConfig.builder()
+                .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                .maxPoolSize(4)
+                .registerMBean(false)
+                .build();
+        boolean allocates = false;
+
+        PooledDataSource pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                new StubDataSource(0, TimeUnit.MILLISECONDS), connectionPoolConfig);
+        try {
+            allocates |= check("pooled", pooledDataSource, null, threadMXBean);
+            allocates |= check("pooled with credentials", pooledDataSource, "user", threadMXBean);
+        } finally {
+            pooledDataSource.close();
+        }
+
+        PooledDataSource affinityDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                new StubDataSource(0, TimeUnit.MILLISECONDS), connectionPoolConfig.toBuilder().threadAffinity(true).build());
+        try {
+            allocates |= check("pooled with thread affinity", affinityDataSource, null, threadMXBean);
+        } finally {
+            affinityDataSource.close();
+        }
+
+        CloseableDataSourceFactory closeableDataSourceFactory = new CloseableDataSourceFactory();
+        try (HealthCheckScheduler healthCheckScheduler = new HealthCheckScheduler(1)) {
+            ConnectionManagedDataSource managedDataSource = new ConnectionManagedDataSourceFactory(healthCheckScheduler)
+                    .createConnectionManagedDataSourceWithPooling(
+                            closeableDataSourceFactory.createCloseableDataSource(new StubDataSource(0, TimeUnit.MILLISECONDS)),
+                            connectionPoolConfig,
+                            closeableDataSourceFactory.createCloseableDataSource(new StubDataSource(0, TimeUnit.MILLISECONDS)),
+                            connectionPoolConfig);
+            try {
+                allocates |= check("managed", managedDataSource, null, threadMXBean);
+            } finally {
+                managedDataSource.close();
+            }
+        }
+
+        if (allocates) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param username the username to borrow with or null to borrow without credentials
+     * @return true if the borrow/return path has allocated more than the borrow handles
+     */
+    private static boolean check(String name, DataSource dataSource, String username, com.sun.management.ThreadMXBean threadMXBean) throws SQLException {
+        long threadId = Thread.currentThread().getId();
+        borrowAndReturn(dataSource, username, WARM_UP_BORROWS);
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        borrowAndReturn(dataSource, username, MEASURED_BORROWS);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        System.out.printf("%s: %d bytes allocated by %d borrows, %.3f bytes per borrow%n",
+                name, allocated, MEASURED_BORROWS, (double) allocated / MEASURED_BORROWS);
+        return allocated > (long) MAX_BYTES_PER_BORROW * MEASURED_BORROWS;
+    }
+
+    private static void borrowAndReturn(DataSource dataSource, String username, int borrows) throws SQLException {
+        for (int i = 0; i < borrows; i++) {
+            Connection connection = username != null ? dataSource.getConnection(username, "password") : dataSource.getConnection();
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.task.dbcm.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.task.dbcm.connectionmanager.ConnectionManagedDataSource;
+import org.task.dbcm.connectionmanager.ConnectionManagedDataSourceFactory;
+import org.task.dbcm.connectionmanager.datasource.CloseableDataSourceFactory;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead the failover routing of {@link ConnectionManagedDataSource} adds to a borrow/return
+ * round-trip compared to the same round-trip on a bare pooled data source. Both sides use pools of the same size
+ * on top of stub data sources, so the difference is the routing cost including the health checking running
+ * in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionManagedDataSourceBenchmark {
+    private static final int POOL_SIZE = 16;
+
+    private PooledDataSource pooledDataSource;
+    private ConnectionManagedDataSource connectionManagedDataSource;
+
+    @Setup
+    public void setUp() {
+        ConnectionPoolConfig connectionPoolConfig = ConnectionPoolConfig.builder()
+                .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                .maxPoolSize(POOL_SIZE)
+                .build();
+        CloseableDataSourceFactory closeableDataSourceFactory = new CloseableDataSourceFactory();
+
+        pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                new StubDataSource(0, TimeUnit.MILLISECONDS),
+                connectionPoolConfig);
+        connectionManagedDataSource = new ConnectionManagedDataSourceFactory().createConnectionManagedDataSourceWithPooling(
+                closeableDataSourceFactory.createCloseableDataSource(new StubDataSource(0, TimeUnit.MILLISECONDS)),
+                connectionPoolConfig,
+                closeableDataSourceFactory.createCloseableDataSource(new StubDataSource(0, TimeUnit.MILLISECONDS)),
+                connectionPoolConfig);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        pooledDataSource.close();
+        connectionManagedDataSource.close();
+    }
+
+    @Benchmark
+    public Connection pooled() throws SQLException {
+        Connection connection = pooledDataSource.getConnection();
+        connection.close();
+        return connection;
+    }
+
+    @Benchmark
+    public Connection managed() throws SQLException {
+        Connection connection = connectionManagedDataSource.getConnection();
+        connection.close();
+        return connection;
+    }
+}
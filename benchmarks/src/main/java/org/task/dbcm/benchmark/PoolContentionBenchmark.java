@@ -0,0 +1,82 @@
+package org.task.dbcm.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of borrow/return round-trips through {@link PooledDataSource} shared by a growing number
+ * of threads. A pool which is smaller than the number of threads shows the cost of waiting for a returned
+ * connection, a pool which is large enough for every thread shows the cost of the acquisition path itself.
+ * <p>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar PoolContentionBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PoolContentionBenchmark {
+    @Param({"4", "64"})
+    private int maxPoolSize;
+
+    @Param({"0", "5"})
+    private long connectLatencyMillis;
+
+    @Param({"false", "true"})
+    private boolean threadAffinity;
+
+    private PooledDataSource pooledDataSource;
+
+    @Setup
+    public void setUp() {
+        pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                new StubDataSource(connectLatencyMillis, TimeUnit.MILLISECONDS),
+                ConnectionPoolConfig.builder()
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(maxPoolSize)
+                        .threadAffinity(threadAffinity)
+                        .build());
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        pooledDataSource.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection threads01() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Connection threads04() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Connection threads16() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Connection threads64() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    private Connection borrowAndReturn() throws SQLException {
+        Connection connection = pooledDataSource.getConnection();
+        connection.close();
+        return connection;
+    }
+}
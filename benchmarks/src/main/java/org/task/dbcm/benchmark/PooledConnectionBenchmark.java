@@ -0,0 +1,66 @@
+package org.task.dbcm.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the delegation done by the pooled connection wrapper: the same calls are made
+ * on a stub connection directly and through a connection borrowed from the pool which wraps a stub connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PooledConnectionBenchmark {
+    private PooledDataSource pooledDataSource;
+    private Connection pooledConnection;
+    private Connection stubConnection;
+
+    @Setup
+    public void setUp() throws SQLException {
+        StubDataSource stubDataSource = new StubDataSource(0, TimeUnit.MILLISECONDS);
+        pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                stubDataSource,
+                ConnectionPoolConfig.builder()
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(1)
+                        .build());
+        pooledConnection = pooledDataSource.getConnection();
+        stubConnection = stubDataSource.getConnection();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        pooledConnection.close();
+        stubConnection.close();
+        pooledDataSource.close();
+    }
+
+    @Benchmark
+    public boolean directGetAutoCommit() throws SQLException {
+        return stubConnection.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean pooledGetAutoCommit() throws SQLException {
+        return pooledConnection.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean directIsReadOnly() throws SQLException {
+        return stubConnection.isReadOnly();
+    }
+
+    @Benchmark
+    public boolean pooledIsReadOnly() throws SQLException {
+        return pooledConnection.isReadOnly();
+    }
+}
@@ -0,0 +1,402 @@
+package org.task.dbcm.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection which does not talk to any database. Statements created by it return a single row with
+ * the value 1 after the configured query latency.
+ * <p>
+ * The connection itself is a plain class, so calls through a pooled connection wrapper can be compared
+ * with direct calls without reflection noise.
+ */
+public final class StubConnection implements Connection {
+    private final StubDataSource dataSource;
+    private final long queryLatencyNanos;
+
+    private volatile boolean closed;
+    private boolean autoCommit = true;
+    private boolean readOnly;
+
+    StubConnection(StubDataSource dataSource, long queryLatencyNanos) {
+        this.dataSource = dataSource;
+        this.queryLatencyNanos = queryLatencyNanos;
+    }
+
+    private void closeConnection() {
+        if (!closed) {
+            closed = true;
+            dataSource.connectionClosed();
+        }
+    }
+
+    private <S extends Statement> S statement(Class<S> type) {
+        return type.cast(Proxy.newProxyInstance(
+                StubConnection.class.getClassLoader(),
+                new Class<?>[]{type},
+                new StubStatementHandler()));
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return statement(Statement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return statement(CallableStatement.class);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        this.autoCommit = autoCommit;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return autoCommit;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closeConnection();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return readOnly;
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return statement(Statement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return statement(CallableStatement.class);
+    }
+
+    @Override
+    public java.util.Map<String,Class<?>> getTypeMap() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setTypeMap(java.util.Map<String,Class<?>> map) throws SQLException {
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return statement(Statement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return statement(CallableStatement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int columnIndexes[]) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String columnNames[]) throws SQLException {
+        return statement(PreparedStatement.class);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return !closed;
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private final class StubStatementHandler implements InvocationHandler {
+        private boolean statementClosed;
+        private ResultSet resultSet;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "executeQuery":
+                    executeLatency();
+                    resultSet = resultSet();
+                    return resultSet;
+                case "execute":
+                    executeLatency();
+                    resultSet = resultSet();
+                    return true;
+                case "executeUpdate":
+                    executeLatency();
+                    return 0;
+                case "getResultSet":
+                    return resultSet;
+                case "getUpdateCount":
+                    return -1;
+                case "getConnection":
+                    return StubConnection.this;
+                case "close":
+                    statementClosed = true;
+                    return null;
+                case "isClosed":
+                    return statementClosed;
+                default:
+                    return defaultValue(proxy, method, args);
+            }
+        }
+    }
+
+    private final class StubResultSetHandler implements InvocationHandler {
+        private int row;
+        private boolean resultSetClosed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "next":
+                    return ++row == 1;
+                case "getInt":
+                case "getLong":
+                case "getObject":
+                    return method.getReturnType() == long.class ? (Object) 1L : (Object) 1;
+                case "wasNull":
+                    return false;
+                case "close":
+                    resultSetClosed = true;
+                    return null;
+                case "isClosed":
+                    return resultSetClosed;
+                default:
+                    return defaultValue(proxy, method, args);
+            }
+        }
+    }
+
+    private ResultSet resultSet() {
+        return (ResultSet) Proxy.newProxyInstance(
+                StubConnection.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                new StubResultSetHandler());
+    }
+
+    private void executeLatency() {
+        if (queryLatencyNanos > 0) {
+            LockSupport.parkNanos(queryLatencyNanos);
+        }
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                break;
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
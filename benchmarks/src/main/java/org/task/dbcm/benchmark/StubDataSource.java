@@ -0,0 +1,86 @@
+package org.task.dbcm.benchmark;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * An in-process data source which creates stub connections without any network interaction.
+ * Creation of a connection takes the configured connect latency to emulate a connection handshake and
+ * every statement execution takes the configured query latency.
+ */
+public final class StubDataSource implements DataSource {
+    private final long connectLatencyNanos;
+    private final long queryLatencyNanos;
+    private final AtomicInteger openedConnections = new AtomicInteger();
+
+    public StubDataSource(long connectLatency, TimeUnit unit) {
+        this(connectLatency, 0, unit);
+    }
+
+    public StubDataSource(long connectLatency, long queryLatency, TimeUnit unit) {
+        this.connectLatencyNanos = unit.toNanos(connectLatency);
+        this.queryLatencyNanos = unit.toNanos(queryLatency);
+    }
+
+    public int getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    void connectionClosed() {
+        openedConnections.decrementAndGet();
+    }
+
+    @Override
+    public Connection getConnection() {
+        if (connectLatencyNanos > 0) {
+            LockSupport.parkNanos(connectLatencyNanos);
+        }
+        openedConnections.incrementAndGet();
+        return new StubConnection(this, queryLatencyNanos);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLException("Not a wrapper");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+}
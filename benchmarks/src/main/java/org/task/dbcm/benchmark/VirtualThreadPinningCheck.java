@@ -0,0 +1,104 @@
+package org.task.dbcm.benchmark;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Borrows connections from {@link PooledDataSource} on thousands of virtual threads at once and counts
+ * the {@code jdk.VirtualThreadPinned} events recorded by JFR in the meantime. Every borrower runs one query
+ * against the stub data source, so the pool is much smaller than the number of borrowers and most of them
+ * wait for a connection. A pool which blocks while holding a monitor pins the carrier threads of its waiters.
+ * <p>
+ * The benchmarks are compiled for Java 11, so virtual threads are created through reflection and the check
+ * needs Java 21 to run:
+ * {@code java -cp benchmarks/target/benchmarks.jar org.task.dbcm.benchmark.VirtualThreadPinningCheck [borrowers] [maxPoolSize]}.
+ * The exit status is 1 if any thread has been pinned or any borrow has failed.
+ */
+public final class VirtualThreadPinningCheck {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private VirtualThreadPinningCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int borrowers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int maxPoolSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        PooledDataSource pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(
+                new StubDataSource(2, 1, TimeUnit.MILLISECONDS),
+                ConnectionPoolConfig.builder()
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(maxPoolSize)
+                        .connectionTimeout(TimeUnit.MINUTES.toMillis(1))
+                        .registerMBean(false)
+                        .build());
+
+        AtomicInteger failures = new AtomicInteger();
+        Path recordingFile = Files.createTempFile("pinning", ".jfr");
+        long elapsed;
+        try (Recording recording = new Recording()) {
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            long startTime = System.nanoTime();
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            for (int i = 0; i < borrowers; i++) {
+                executor.execute(() -> borrow(pooledDataSource, failures));
+            }
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+            elapsed = System.nanoTime() - startTime;
+
+            recording.stop();
+            recording.dump(recordingFile);
+        } finally {
+            pooledDataSource.close();
+        }
+
+        List<RecordedEvent> pinnedEvents = RecordingFile.readAllEvents(recordingFile);
+        Files.delete(recordingFile);
+        System.out.printf("%d borrowers on a pool of %d connections took %d ms, %d borrows failed%n",
+                borrowers, maxPoolSize, TimeUnit.NANOSECONDS.toMillis(elapsed), failures.get());
+        System.out.printf("%d pinned events%n", pinnedEvents.size());
+        for (RecordedEvent event : pinnedEvents) {
+            System.out.println(event);
+        }
+        if (!pinnedEvents.isEmpty() || failures.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void borrow(PooledDataSource pooledDataSource, AtomicInteger failures) {
+        try (Connection connection = pooledDataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select 1")) {
+            resultSet.next();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() throws ReflectiveOperationException {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later", e);
+        }
+    }
+}
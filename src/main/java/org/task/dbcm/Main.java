@@ -42,11 +42,13 @@ public class Main {
                         ConnectionPoolConfig.builder()
                                 .connectionTTL(60_000L)
                                 .maxPoolSize(8)
+                                .statementCacheSize(16)
                                 .build(),
                         slave,
                         ConnectionPoolConfig.builder()
                                 .connectionTTL(60_000L)
                                 .maxPoolSize(4)
+                                .statementCacheSize(16)
                                 .build());
 
         NamedParameterJdbcOperations jdbcOperations = new NamedParameterJdbcTemplate(connectionManagedDataSource);
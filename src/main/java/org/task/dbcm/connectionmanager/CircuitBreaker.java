@@ -0,0 +1,122 @@
+package org.task.dbcm.connectionmanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A circuit breaker which decides whether a node gets traffic.
+ * <ul>
+ * <li>{@link State#CLOSED}: the node gets all its traffic. After {@code failureThreshold} consecutive failures,
+ * of the health checks or of borrowing a connection, the breaker opens.</li>
+ * <li>{@link State#OPEN}: the node gets no traffic. Only the health checks go on and after
+ * {@code successThreshold} consecutive successful checks the breaker becomes half-open.</li>
+ * <li>{@link State#HALF_OPEN}: the node gets a share of the requests which grows linearly from 0 to 100%
+ * during the failback duration, so its pool warms up gradually instead of taking all the traffic at once.
+ * Any failure opens the breaker again, the breaker closes once the share reaches 100%.</li>
+ * </ul>
+ * A single failed check never moves traffic and a node which recovers for a moment does not get all the traffic
+ * back, so a flapping node does not swing the traffic back and forth.
+ * <p>
+ * The listener given to the breaker is called with the new state after every transition.
+ */
+final class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final int successThreshold;
+    private final long failbackDurationNanos;
+    private final Consumer<State> stateListener;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger consecutiveSuccesses = new AtomicInteger();
+    private volatile long halfOpenTime;
+
+    CircuitBreaker(String name, HealthCheckConfig healthCheckConfig, Consumer<State> stateListener) {
+        this.name = name;
+        this.failureThreshold = healthCheckConfig.getFailureThreshold();
+        this.successThreshold = healthCheckConfig.getSuccessThreshold();
+        this.failbackDurationNanos = TimeUnit.MILLISECONDS.toNanos(healthCheckConfig.getFailbackDuration());
+        this.stateListener = stateListener;
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return false if the breaker is open
+     */
+    boolean isAvailable() {
+        return state.get() != State.OPEN;
+    }
+
+    /**
+     * Decides whether a request may go to the node.
+     */
+    boolean allowRequest() {
+        State current = state.get();
+        if (current != State.HALF_OPEN) {
+            return current == State.CLOSED;
+        }
+        long elapsed = System.nanoTime() - halfOpenTime;
+        if (elapsed >= failbackDurationNanos) {
+            if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                LOG.debug("Node {} has failed back completely", name);
+                stateListener.accept(State.CLOSED);
+            }
+            return true;
+        }
+        return ThreadLocalRandom.current().nextLong(failbackDurationNanos) < elapsed;
+    }
+
+    void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    void onFailure() {
+        consecutiveSuccesses.set(0);
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            open(current);
+        } else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(current);
+        }
+    }
+
+    void onCheckSuccess() {
+        onSuccess();
+        if (state.get() == State.OPEN && consecutiveSuccesses.incrementAndGet() >= successThreshold) {
+            halfOpenTime = System.nanoTime();
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                LOG.debug("Node {} is alive again, failing back during {} ms",
+                        name, TimeUnit.NANOSECONDS.toMillis(failbackDurationNanos));
+                stateListener.accept(State.HALF_OPEN);
+            }
+        }
+    }
+
+    private void open(State current) {
+        if (state.compareAndSet(current, State.OPEN)) {
+            consecutiveFailures.set(0);
+            consecutiveSuccesses.set(0);
+            LOG.debug("Node {} is dead, circuit breaker is open", name);
+            stateListener.accept(State.OPEN);
+        }
+    }
+}
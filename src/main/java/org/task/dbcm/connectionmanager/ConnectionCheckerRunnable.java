@@ -3,42 +3,160 @@ package org.task.dbcm.connectionmanager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
+import org.task.dbcm.connectionmanager.datasource.ConnectionSupplier;
+import org.task.dbcm.connectionmanager.datasource.PoolMetrics;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * A single health check of a node, scheduled periodically. The check borrows a connection and validates it with
+ * {@link Connection#isValid(int)} bounded by the health check timeout; a check which fails or takes longer than
+ * the timeout is a failure. The results are reported to the circuit breaker of the node, which decides when
+ * the node is dead or alive. The time of every successful check is recorded as the probe latency of the node.
+ * <p>
+ * A connection is borrowed from a pool asynchronously and the wait is bounded by the health check timeout too,
+ * so a saturated or hung node never holds a thread of the health check scheduler for the connection timeout
+ * of its pool. A pool whose connections are all in use is checked with a dedicated connection opened outside
+ * of the pool instead, as the borrowers may be stuck on a hung database, which only a fresh connection reveals.
+ * A node without a pool is always checked with a dedicated connection. It is opened on a connector thread and
+ * the check waits for it no longer than its timeout; while a connect of an earlier check still hangs no new one
+ * is started and the check fails right away.
+ */
 final class ConnectionCheckerRunnable implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionCheckerRunnable.class);
 
-    private final AtomicBoolean working = new AtomicBoolean(true);
+    private final ManagedNode node;
+    private final long timeoutNanos;
+    private final int timeoutSeconds;
+    private final Executor connector;
 
-    private final CloseableDataSource dataSource;
-    private final AtomicBoolean statusHolder;
+    /**
+     * The dedicated check still running, runs of the same check never overlap.
+     */
+    private CompletableFuture<Boolean> pendingCheck;
+    private long checkStartTime;
 
-    public ConnectionCheckerRunnable(CloseableDataSource dataSource, AtomicBoolean statusHolder) {
-        this.dataSource = Objects.requireNonNull(dataSource, "DataSource cannot be null");
-        this.statusHolder = Objects.requireNonNull(statusHolder, "StatusHolder cannot be null");
+    public ConnectionCheckerRunnable(ManagedNode node, HealthCheckConfig healthCheckConfig, Executor connector) {
+        this.node = Objects.requireNonNull(node, "Node cannot be null");
+        Objects.requireNonNull(healthCheckConfig, "HealthCheckConfig cannot be null");
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(healthCheckConfig.getTimeout());
+        this.timeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(healthCheckConfig.getTimeout() + 999));
+        this.connector = Objects.requireNonNull(connector, "Connector cannot be null");
     }
 
     @Override
     public void run() {
-        while (working.get()) {
-            try (Connection connection = dataSource.getConnection();
-                 PreparedStatement ps = connection.prepareStatement("select 1");
-                 ResultSet rs = ps.executeQuery()) {
-                statusHolder.set(true);
+        checkStartTime = System.nanoTime();
+        boolean valid;
+        try {
+            valid = check();
+        } catch (TimeoutException e) {
+            LOG.debug("DataSource check of node {} has timed out waiting for a connection", node);
+            valid = false;
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("DataSource check of node {} has failed:", node, e);
+            valid = false;
+        }
+        long elapsed = System.nanoTime() - checkStartTime;
+
+        if (valid && elapsed <= timeoutNanos) {
+            node.onCheckSuccess(elapsed);
+        } else {
+            if (valid) {
+                LOG.debug("DataSource check of node {} has timed out after {} ms", node, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
+            node.onCheckFailure();
+        }
+    }
+
+    private boolean check() throws SQLException, TimeoutException {
+        CloseableDataSource dataSource = node.getDataSource();
+        if (!(dataSource instanceof PooledDataSource)) {
+            return checkDedicated(dataSource::getConnection);
+        }
+        PooledDataSource pooledDataSource = (PooledDataSource) dataSource;
+        if (isSaturated(pooledDataSource)) {
+            return checkDedicated(pooledDataSource::openDedicatedConnection);
+        }
+        Connection connection;
+        try {
+            connection = await(pooledDataSource.getConnectionAsync());
+        } catch (TimeoutException e) {
+            if (!isSaturated(pooledDataSource)) {
+                throw e;
+            }
+            LOG.debug("DataSource check of node {} has queued behind the borrowers, checking a dedicated connection", node);
+            checkStartTime = System.nanoTime();
+            return checkDedicated(pooledDataSource::openDedicatedConnection);
+        }
+        try (Connection borrowed = connection) {
+            return borrowed.isValid(timeoutSeconds);
+        }
+    }
+
+    /**
+     * Opens a connection with the supplier on a connector thread and validates it, waiting no longer than
+     * the health check timeout. A connect which has timed out keeps running and closes its connection once
+     * it is done.
+     */
+    private boolean checkDedicated(ConnectionSupplier connectionSupplier) throws SQLException, TimeoutException {
+        if (pendingCheck != null && !pendingCheck.isDone()) {
+            throw new TimeoutException("Connect of the previous check is still running");
+        }
+        pendingCheck = CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = connectionSupplier.get()) {
+                return connection.isValid(timeoutSeconds);
             } catch (SQLException e) {
-                statusHolder.set(false);
-                LOG.debug("DataSource check has failed:", e);
+                throw new CompletionException(e);
+            }
+        }, connector);
+        return await(pendingCheck);
+    }
+
+    /**
+     * @throws TimeoutException if the future has not been completed within the health check timeout
+     */
+    private <T> T await(CompletableFuture<T> future) throws SQLException, TimeoutException {
+        long remaining = timeoutNanos - (System.nanoTime() - checkStartTime);
+        try {
+            return future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            cancel(future);
+            throw e;
+        } catch (InterruptedException e) {
+            cancel(future);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
             }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Gives a borrow up, a dedicated connect cannot be interrupted and is left to finish.
+     */
+    private void cancel(Future<?> future) {
+        if (future != pendingCheck) {
+            future.cancel(false);
         }
     }
 
-    public void stop() {
-        working.set(false);
+    private static boolean isSaturated(PooledDataSource pooledDataSource) {
+        PoolMetrics poolMetrics = pooledDataSource.getPoolMetrics();
+        return poolMetrics.getIdleConnections() == 0 && poolMetrics.getActiveConnections() > 0;
     }
 }
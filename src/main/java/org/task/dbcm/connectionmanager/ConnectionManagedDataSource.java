@@ -1,7 +1,37 @@
 package org.task.dbcm.connectionmanager;
 
 import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
+import org.task.dbcm.connectionmanager.datasource.PoolMetrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface ConnectionManagedDataSource extends CloseableDataSource {
+    /**
+     * Borrows a connection which is used only for reading. In the {@link RoutingMode#READ_WRITE_SPLIT} mode
+     * it comes from one of the alive replicas, chosen by their latency and weight. While no replica is alive,
+     * and in the other modes, it is the same as {@link #getConnection()}.
+     */
+    Connection getReadOnlyConnection() throws SQLException;
+
+    /**
+     * Borrows a connection without blocking, routed like {@link #getConnection()}. With a pooled node the future
+     * is completed on the thread which returns or opens the connection, a node without a pool opens
+     * the connection on the calling thread.
+     */
+    CompletableFuture<Connection> getConnectionAsync();
+
+    /**
+     * Borrows a connection without blocking, routed like {@link #getConnection()}. The future is completed
+     * on the given executor.
+     */
+    CompletableFuture<Connection> getConnectionAsync(Executor executor);
 
+    /**
+     * @return metrics of the pooled data sources keyed by the node name, empty if no pooling is used
+     */
+    Map<String, PoolMetrics> getPoolMetrics();
 }
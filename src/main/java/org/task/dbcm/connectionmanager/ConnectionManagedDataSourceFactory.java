@@ -4,17 +4,46 @@ import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
 import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
 import org.task.dbcm.connectionmanager.datasource.PooledDataSourceFactory;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 public class ConnectionManagedDataSourceFactory {
+    private static final String MASTER = "master";
+    private static final String SLAVE = "slave";
+
     private final PooledDataSourceFactory pooledDataSourceFactory = new PooledDataSourceFactory();
+    private final HealthCheckScheduler healthCheckScheduler;
+
+    /**
+     * Creates a factory whose data sources are checked by the shared health check scheduler.
+     */
+    public ConnectionManagedDataSourceFactory() {
+        this(HealthCheckScheduler.getShared());
+    }
+
+    public ConnectionManagedDataSourceFactory(HealthCheckScheduler healthCheckScheduler) {
+        this.healthCheckScheduler = Objects.requireNonNull(healthCheckScheduler, "HealthCheckScheduler cannot be null");
+    }
 
     public ConnectionManagedDataSource createConnectionManagedDataSource(
             CloseableDataSource master,
             CloseableDataSource slave) {
 
-        return new ConnectionManagedDataSourceImpl(master, slave, createCheckerExecutorService());
+        return createConnectionManagedDataSource(master, slave, RoutingMode.FAILOVER);
+    }
+
+    public ConnectionManagedDataSource createConnectionManagedDataSource(
+            CloseableDataSource master,
+            CloseableDataSource slave,
+            RoutingMode routingMode) {
+
+        return createConnectionManagedDataSource(
+                DataSourceNode.builder().name(MASTER).dataSource(master).build(),
+                List.of(DataSourceNode.builder().name(SLAVE).dataSource(slave).build()),
+                routingMode);
     }
 
     public ConnectionManagedDataSource createConnectionManagedDataSourceWithPooling(
@@ -23,19 +52,92 @@ public class ConnectionManagedDataSourceFactory {
             CloseableDataSource slave,
             ConnectionPoolConfig slaveConnectionPoolConfig) {
 
+        return createConnectionManagedDataSourceWithPooling(
+                master,
+                masterConnectionPoolConfig,
+                slave,
+                slaveConnectionPoolConfig,
+                RoutingMode.FAILOVER);
+    }
+
+    public ConnectionManagedDataSource createConnectionManagedDataSourceWithPooling(
+            CloseableDataSource master,
+            ConnectionPoolConfig masterConnectionPoolConfig,
+            CloseableDataSource slave,
+            ConnectionPoolConfig slaveConnectionPoolConfig,
+            RoutingMode routingMode) {
+
+        return createConnectionManagedDataSource(
+                DataSourceNode.builder()
+                        .name(MASTER)
+                        .dataSource(master)
+                        .connectionPoolConfig(Objects.requireNonNull(masterConnectionPoolConfig, "Master ConnectionPoolConfig cannot be null"))
+                        .build(),
+                List.of(DataSourceNode.builder()
+                        .name(SLAVE)
+                        .dataSource(slave)
+                        .connectionPoolConfig(Objects.requireNonNull(slaveConnectionPoolConfig, "Slave ConnectionPoolConfig cannot be null"))
+                        .build()),
+                routingMode);
+    }
+
+    /**
+     * Creates a data source over one primary and any number of replicas. The replicas are used for failover
+     * in the given order and, in the {@link RoutingMode#READ_WRITE_SPLIT} mode, share the reads according to their
+     * latency and weight. Nodes with a pool config get a pool, the health checker opens a dedicated connection
+     * when all of its connections are in use.
+     * The given health check config applies to the nodes which do not have their own one,
+     * the 3-argument variant uses the default {@link HealthCheckConfig}.
+     */
+    public ConnectionManagedDataSource createConnectionManagedDataSource(
+            DataSourceNode primary,
+            List<DataSourceNode> replicas,
+            RoutingMode routingMode) {
+
+        return createConnectionManagedDataSource(primary, replicas, routingMode, HealthCheckConfig.builder().build());
+    }
+
+    public ConnectionManagedDataSource createConnectionManagedDataSource(
+            DataSourceNode primary,
+            List<DataSourceNode> replicas,
+            RoutingMode routingMode,
+            HealthCheckConfig healthCheckConfig) {
+
+        Objects.requireNonNull(primary, "Primary node cannot be null");
+        Objects.requireNonNull(replicas, "Replica nodes cannot be null");
+        Set<String> names = new HashSet<>();
+        names.add(primary.getName());
+        for (DataSourceNode replica : replicas) {
+            if (!names.add(replica.getName())) {
+                throw new IllegalArgumentException("Duplicate node name: " + replica.getName());
+            }
+        }
+
+        Objects.requireNonNull(healthCheckConfig, "HealthCheckConfig cannot be null");
+        List<ManagedNode> replicaNodes = new ArrayList<>(replicas.size());
+        for (DataSourceNode replica : replicas) {
+            replicaNodes.add(createManagedNode(replica, healthCheckConfig));
+        }
         return new ConnectionManagedDataSourceImpl(
-                pooledDataSourceFactory.createPooledDataSource(
-                        master,
-                        masterConnectionPoolConfig.toBuilder()
-                                .maxPoolSize(masterConnectionPoolConfig.getMaxPoolSize() + 1)
-                                .build()),
-                pooledDataSourceFactory.createPooledDataSource(
-                        slave,
-                        slaveConnectionPoolConfig),
-                createCheckerExecutorService());
-    }
-
-    private ExecutorService createCheckerExecutorService() {
-        return Executors.newFixedThreadPool(1);
+                createManagedNode(primary, healthCheckConfig),
+                replicaNodes,
+                routingMode,
+                healthCheckScheduler);
+    }
+
+    private ManagedNode createManagedNode(DataSourceNode dataSourceNode, HealthCheckConfig defaultHealthCheckConfig) {
+        ConnectionPoolConfig connectionPoolConfig = dataSourceNode.getConnectionPoolConfig();
+        CloseableDataSource dataSource = connectionPoolConfig == null
+                ? dataSourceNode.getDataSource()
+                : pooledDataSourceFactory.createPooledDataSource(
+                        dataSourceNode.getDataSource(),
+                        connectionPoolConfig.toBuilder()
+                                .nodeName(dataSourceNode.getName())
+                                .build());
+        return new ManagedNode(
+                dataSourceNode.getName(),
+                dataSource,
+                dataSourceNode.getWeight(),
+                dataSourceNode.getHealthCheckConfig() != null ? dataSourceNode.getHealthCheckConfig() : defaultHealthCheckConfig);
     }
 }
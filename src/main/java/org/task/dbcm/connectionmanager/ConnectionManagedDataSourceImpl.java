@@ -1,85 +1,312 @@
 package org.task.dbcm.connectionmanager;
 
 import org.slf4j.LoggerFactory;
-import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
+import org.task.dbcm.connectionmanager.datasource.PoolMetrics;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
 
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
 /**
- * A data source implementation which can use slave data source to get connections if the master is dead.
- * The check is performed in the execution service using a checking runnable which updates the status of the
- * master data source. If the master data source is up then all new connections are got from the
- * master data source.
- * A status checker runnable always uses one connection from the master data source to perform a
- * simple query to check the availability of the master data source. It does it all the time.
- * Executor service is used for status checker runnable cause it's easier.
+ * A data source implementation which can use replica data sources to get connections if the primary is dead.
+ * Every node is checked periodically by a checker runnable scheduled in the health check scheduler, which may be
+ * shared with other data sources, with the interval of the node. A check borrows a connection from the node and
+ * validates it within the health check timeout.
+ * <p>
+ * The results of the checks and the failures to borrow a connection from a node drive the circuit breaker
+ * of the node. If the breaker of the primary lets a request through then the connection is got from the primary
+ * data source, otherwise from the first replica whose breaker does, in the order the replicas were given.
+ * A recovered primary gets a growing share of the requests until it takes all of them again.
+ * <p>
+ * In the {@link RoutingMode#FAILOVER} mode the replicas get no traffic while the primary is alive, so their pools
+ * are kept in standby with a few warm connections. When the breaker of the primary opens the first available
+ * replica is promoted and its pool scales up right away, when the primary has failed back completely
+ * the replicas go back to standby.
+ * <p>
+ * In the {@link RoutingMode#READ_WRITE_SPLIT} mode read-only connections, borrowed with
+ * {@link #getReadOnlyConnection()} or inside a {@link ReadOnlyScope}, come from the replicas which are alive.
+ * A replica is chosen with the power of two choices: two random replicas are compared and the one with the better
+ * latency score wins, so a degraded replica gets less traffic without any coordination between threads.
+ * A read falls back to the primary if no replica is alive or the chosen one fails to give a connection.
+ * <p>
+ * Asynchronous borrows are routed the same way. Cancelling the returned future cancels the borrow from the node,
+ * a connection which arrives after the cancellation is closed, i.e. returned to its pool.
  */
 final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSource {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ConnectionManagedDataSourceImpl.class);
 
-    private final CloseableDataSource master;
-    private final CloseableDataSource slave;
+    private final ManagedNode primary;
+    private final List<ManagedNode> replicas;
+    private final List<ManagedNode> nodes;
+    private final Map<String, PoolMetrics> poolMetrics;
+    private final RoutingMode routingMode;
 
-    private final AtomicBoolean masterAlive;
-    private final ExecutorService checkerExecutorService;
-    private final ConnectionCheckerRunnable connectionCheckerRunnable;
+    private final List<ScheduledFuture<?>> checkers;
 
-    ConnectionManagedDataSourceImpl(CloseableDataSource master, CloseableDataSource slave, ExecutorService checkerExecutorService) {
-        this.master = Objects.requireNonNull(master, "Master DataSource cannot be null");
-        this.slave = Objects.requireNonNull(slave, "Slave DataSource cannot be null");
+    ConnectionManagedDataSourceImpl(ManagedNode primary,
+                                    List<ManagedNode> replicas,
+                                    RoutingMode routingMode,
+                                    HealthCheckScheduler healthCheckScheduler) {
+        this.primary = Objects.requireNonNull(primary, "Primary node cannot be null");
+        this.replicas = List.copyOf(Objects.requireNonNull(replicas, "Replica nodes cannot be null"));
+        this.routingMode = Objects.requireNonNull(routingMode, "RoutingMode cannot be null");
 
-        this.masterAlive = new AtomicBoolean(true);
-        this.checkerExecutorService = Objects.requireNonNull(checkerExecutorService, "CheckerExecutorService cannot be null");
-        this.connectionCheckerRunnable = new ConnectionCheckerRunnable(master, masterAlive);
+        List<ManagedNode> nodes = new ArrayList<>(this.replicas.size() + 1);
+        nodes.add(primary);
+        nodes.addAll(this.replicas);
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.poolMetrics = collectPoolMetrics(this.nodes);
 
-        this.checkerExecutorService.submit(connectionCheckerRunnable);
+        if (routingMode == RoutingMode.FAILOVER) {
+            for (ManagedNode replica : this.replicas) {
+                replica.setStandby(true);
+            }
+            primary.setStateListener(this::onPrimaryStateChange);
+        }
+
+        Objects.requireNonNull(healthCheckScheduler, "HealthCheckScheduler cannot be null");
+        List<ScheduledFuture<?>> checkers = new ArrayList<>(this.nodes.size());
+        for (ManagedNode node : this.nodes) {
+            checkers.add(healthCheckScheduler.schedule(
+                    new ConnectionCheckerRunnable(node, node.getHealthCheckConfig(), healthCheckScheduler.getConnector()),
+                    node.getHealthCheckConfig().getInterval()));
+        }
+        this.checkers = Collections.unmodifiableList(checkers);
+    }
+
+    private void onPrimaryStateChange(CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN) {
+            for (ManagedNode replica : replicas) {
+                if (replica.isAvailable()) {
+                    replica.setStandby(false);
+                    return;
+                }
+            }
+        } else if (state == CircuitBreaker.State.CLOSED) {
+            for (ManagedNode replica : replicas) {
+                replica.setStandby(true);
+            }
+        }
+    }
+
+    private static Map<String, PoolMetrics> collectPoolMetrics(List<ManagedNode> nodes) {
+        Map<String, PoolMetrics> poolMetrics = new LinkedHashMap<>();
+        for (ManagedNode node : nodes) {
+            if (node.getDataSource() instanceof PooledDataSource) {
+                poolMetrics.put(node.getName(), ((PooledDataSource) node.getDataSource()).getPoolMetrics());
+            }
+        }
+        return Collections.unmodifiableMap(poolMetrics);
+    }
+
+    @Override
+    public Map<String, PoolMetrics> getPoolMetrics() {
+        return poolMetrics;
     }
 
     @Override
     public void close() throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::close() started");
-            connectionCheckerRunnable.stop();
-            master.close();
-            slave.close();
-
-            checkerExecutorService.shutdown();
-            if (!checkerExecutorService.awaitTermination(10_000, TimeUnit.MILLISECONDS)) {
-                LOG.debug("Failed to stop the checker execution service");
-                checkerExecutorService.shutdownNow();
+            stopCheckers();
+            for (ManagedNode node : nodes) {
+                node.getDataSource().close();
             }
-        } catch (InterruptedException e) {
-            LOG.debug("Interrupted while shutting down the checker execution service:", e);
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::close() finished");
         }
     }
 
+    /**
+     * Cancels the checks of the nodes. A check which is running at the moment completes on its own,
+     * a connection it borrows from a closed pool is closed when it is returned.
+     */
+    private void stopCheckers() {
+        for (ScheduledFuture<?> checker : checkers) {
+            checker.cancel(false);
+        }
+    }
+
     @Override
     public Connection getConnection() throws SQLException {
-        try {
-            LOG.trace("ConnectionManagedDataSourceImpl::getConnection() started");
-            return masterAlive.get() ? master.getConnection() : slave.getConnection();
-        } finally {
-            LOG.trace("ConnectionManagedDataSourceImpl::getConnection() finished");
+        if (isReadRoutedToReplica(ReadOnlyScope.isReadOnly())) {
+            return getReadConnection();
         }
+        return chooseWriteNode().getConnection();
     }
 
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
+        if (isReadRoutedToReplica(ReadOnlyScope.isReadOnly())) {
+            return getReadConnection(username, password);
+        }
+        return chooseWriteNode().getConnection(username, password);
+    }
+
+    @Override
+    public Connection getReadOnlyConnection() throws SQLException {
+        if (isReadRoutedToReplica(true)) {
+            return getReadConnection();
+        }
+        return chooseWriteNode().getConnection();
+    }
+
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync() {
+        return borrowAsync(null);
+    }
+
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync(Executor executor) {
+        return borrowAsync(Objects.requireNonNull(executor, "Executor cannot be null"));
+    }
+
+    private CompletableFuture<Connection> borrowAsync(Executor executor) {
+        if (isReadRoutedToReplica(ReadOnlyScope.isReadOnly())) {
+            ManagedNode replica = chooseReadNode();
+            if (replica != null) {
+                return getReadConnectionAsync(replica, executor);
+            }
+        }
+        return chooseWriteNode().getConnectionAsync(executor);
+    }
+
+    private CompletableFuture<Connection> getReadConnectionAsync(ManagedNode replica, Executor executor) {
+        CompletableFuture<Connection> result = new CompletableFuture<>();
+        CompletableFuture<Connection> replicaFuture = replica.getConnectionAsync(executor);
+        result.whenComplete((connection, e) -> {
+            if (result.isCancelled()) {
+                replicaFuture.cancel(false);
+            }
+        });
+        replicaFuture.whenComplete((connection, e) -> {
+            if (e == null) {
+                if (!result.complete(connection)) {
+                    closeQuietly(connection);
+                }
+            } else if (result.isDone() || !primary.isAvailable()) {
+                result.completeExceptionally(e);
+            } else {
+                LOG.debug("Failed to get a read connection from node {}, falling back to the primary:", replica, e);
+                relay(primary.getConnectionAsync(executor), result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Completes the target with the result of the source and cancels the source if the target is cancelled.
+     */
+    private static void relay(CompletableFuture<Connection> source, CompletableFuture<Connection> target) {
+        target.whenComplete((connection, e) -> {
+            if (target.isCancelled()) {
+                source.cancel(false);
+            }
+        });
+        source.whenComplete((connection, e) -> {
+            if (e == null) {
+                if (!target.complete(connection)) {
+                    closeQuietly(connection);
+                }
+            } else {
+                target.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static void closeQuietly(Connection connection) {
         try {
-            LOG.trace("ConnectionManagedDataSourceImpl::getConnection(String username, String password) started");
-            return masterAlive.get() ? master.getConnection(username, password) : slave.getConnection(username, password);
-        } finally {
-            LOG.trace("ConnectionManagedDataSourceImpl::getConnection(String username, String password) finished");
+            connection.close();
+        } catch (SQLException e) {
+            LOG.debug("Failed to close a connection which is not needed anymore:", e);
+        }
+    }
+
+    private boolean isReadRoutedToReplica(boolean readOnly) {
+        return readOnly && routingMode == RoutingMode.READ_WRITE_SPLIT && !replicas.isEmpty();
+    }
+
+    /**
+     * @return the primary if its circuit breaker lets the request through, otherwise the first replica which
+     * does, or the primary if none of them does
+     */
+    private ManagedNode chooseWriteNode() {
+        if (replicas.isEmpty() || primary.allowRequest()) {
+            return primary;
+        }
+        for (ManagedNode replica : replicas) {
+            if (replica.allowRequest()) {
+                return replica;
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Chooses the better of two random replicas whose circuit breakers let the request through.
+     *
+     * @return the chosen replica or null if no replica can take the request
+     */
+    private ManagedNode chooseReadNode() {
+        int size = replicas.size();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        ManagedNode chosen = null;
+        for (int i = 0; i < size && chosen == null; i++) {
+            ManagedNode replica = replicas.get((first + i) % size);
+            if (replica.allowRequest()) {
+                chosen = replica;
+            }
+        }
+        if (chosen == null || size == 1) {
+            return chosen;
+        }
+        ManagedNode other = replicas.get(random.nextInt(size));
+        return other != chosen && other.getScore() < chosen.getScore() && other.allowRequest() ? other : chosen;
+    }
+
+    private Connection getReadConnection() throws SQLException {
+        ManagedNode replica = chooseReadNode();
+        if (replica == null) {
+            return chooseWriteNode().getConnection();
+        }
+        try {
+            return replica.getConnection();
+        } catch (SQLException e) {
+            if (!primary.isAvailable()) {
+                throw e;
+            }
+            LOG.debug("Failed to get a read connection from node {}, falling back to the primary:", replica, e);
+            return primary.getConnection();
+        }
+    }
+
+    private Connection getReadConnection(String username, String password) throws SQLException {
+        ManagedNode replica = chooseReadNode();
+        if (replica == null) {
+            return chooseWriteNode().getConnection(username, password);
+        }
+        try {
+            return replica.getConnection(username, password);
+        } catch (SQLException e) {
+            if (!primary.isAvailable()) {
+                throw e;
+            }
+            LOG.debug("Failed to get a read connection from node {}, falling back to the primary:", replica, e);
+            return primary.getConnection(username, password);
         }
     }
 
@@ -87,7 +314,7 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public PrintWriter getLogWriter() throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::getLogWriter() started");
-            return master.getLogWriter();
+            return primary.getDataSource().getLogWriter();
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::getLogWriter() finished");
         }
@@ -97,8 +324,9 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public void setLogWriter(PrintWriter out) throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::setLogWriter(PrintWriter out) started");
-            master.setLogWriter(out);
-            slave.setLogWriter(out);
+            for (ManagedNode node : nodes) {
+                node.getDataSource().setLogWriter(out);
+            }
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::setLogWriter(PrintWriter out) finished");
         }
@@ -108,8 +336,9 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public void setLoginTimeout(int seconds) throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::setLoginTimeout(int seconds) started");
-            master.setLoginTimeout(seconds);
-            slave.setLoginTimeout(seconds);
+            for (ManagedNode node : nodes) {
+                node.getDataSource().setLoginTimeout(seconds);
+            }
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::setLoginTimeout(int seconds) finished");
         }
@@ -119,7 +348,7 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public int getLoginTimeout() throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::getLoginTimeout() started");
-            return master.getLoginTimeout();
+            return primary.getDataSource().getLoginTimeout();
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::getLoginTimeout() finished");
         }
@@ -129,7 +358,7 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public <T> T unwrap(Class<T> iface) throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::unwrap(Class<T> iface) started");
-            return master.unwrap(iface);
+            return primary.getDataSource().unwrap(iface);
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::unwrap(Class<T> iface) finished");
         }
@@ -139,7 +368,7 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::isWrapperFor(Class<T> iface) started");
-            return master.isWrapperFor(iface);
+            return primary.getDataSource().isWrapperFor(iface);
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::isWrapperFor(Class<T> iface) finished");
         }
@@ -149,7 +378,7 @@ final class ConnectionManagedDataSourceImpl implements ConnectionManagedDataSour
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
         try {
             LOG.trace("ConnectionManagedDataSourceImpl::getParentLogger() started");
-            return master.getParentLogger();
+            return primary.getDataSource().getParentLogger();
         } finally {
             LOG.trace("ConnectionManagedDataSourceImpl::getParentLogger() finished");
         }
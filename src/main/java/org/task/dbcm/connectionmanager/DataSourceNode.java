@@ -0,0 +1,35 @@
+package org.task.dbcm.connectionmanager;
+
+import lombok.*;
+import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
+import org.task.dbcm.connectionmanager.datasource.ConnectionPoolConfig;
+
+/**
+ * A database node of a connection managed data source.
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+@Builder(toBuilder = true)
+public final class DataSourceNode {
+    /**
+     * Name of the node used in the logs and as the key of the pool metrics.
+     */
+    @NonNull
+    private final String name;
+    @NonNull
+    private final CloseableDataSource dataSource;
+    /**
+     * Config of the pool created for the node, the data source is used as is when it is null.
+     */
+    private final ConnectionPoolConfig connectionPoolConfig;
+    /**
+     * Health check config of the node, the config of the managed data source is used when it is null.
+     */
+    private final HealthCheckConfig healthCheckConfig;
+    /**
+     * Relative share of the reads the node gets compared to the other replicas with the same latency.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer weight = 1;
+}
@@ -0,0 +1,39 @@
+package org.task.dbcm.connectionmanager;
+
+import lombok.*;
+
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+@Builder(toBuilder = true)
+public final class HealthCheckConfig {
+    /**
+     * Delay in milliseconds between the end of a health check of a node and the start of the next one.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long interval = 1_000L;
+    /**
+     * Maximum time in milliseconds a health check may take, a slower check counts as a failure.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long timeout = 1_000L;
+    /**
+     * Number of consecutive failures, of the checks or of borrowing connections, after which a node is considered dead.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer failureThreshold = 3;
+    /**
+     * Number of consecutive successful checks after which a dead node is considered alive again.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer successThreshold = 2;
+    /**
+     * Time in milliseconds during which the share of the traffic a recovered node gets grows from 0 to 100%.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long failbackDuration = 10_000L;
+}
@@ -0,0 +1,109 @@
+package org.task.dbcm.connectionmanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scheduler which runs the health checks of the nodes of any number of connection managed data sources
+ * on a fixed number of daemon threads.
+ * <p>
+ * Every check runs with its own interval. The first run of a check is delayed by a random part of its interval,
+ * so the checks of nodes registered at the same moment are spread over the interval instead of firing together.
+ * Runs of the same check never overlap. A check never blocks a thread of the scheduler for longer than its own
+ * timeout: borrows from a pool are asynchronous, and connections which a check opens outside of a pool, including
+ * all connections of a node without a pool, are opened on separate connector threads, started on demand and
+ * dropped when idle. A connect which hangs holds a connector thread only, so a hung node never delays the checks
+ * of the other nodes.
+ * <p>
+ * The shared scheduler returned by {@link #getShared()} is used by default and lives as long as the JVM.
+ */
+public final class HealthCheckScheduler implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthCheckScheduler.class);
+
+    private static final int DEFAULT_THREADS = 2;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService connector;
+    private final boolean shared;
+
+    public HealthCheckScheduler(int threads) {
+        this(threads, false);
+    }
+
+    private HealthCheckScheduler(int threads, boolean shared) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "HealthCheckScheduler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+        AtomicInteger connectorNumber = new AtomicInteger();
+        this.connector = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "HealthCheckScheduler-connector-" + connectorNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.shared = shared;
+    }
+
+    public static HealthCheckScheduler getShared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * Schedules a check to run periodically with the given delay between the end of a run and the start
+     * of the next one.
+     *
+     * @return a future which cancels the check
+     */
+    ScheduledFuture<?> schedule(Runnable check, long intervalMillis) {
+        Objects.requireNonNull(check, "Check cannot be null");
+        long initialDelay = ThreadLocalRandom.current().nextLong(Math.max(1, intervalMillis));
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                check.run();
+            } catch (RuntimeException e) {
+                LOG.debug("Health check has failed:", e);
+            }
+        }, initialDelay, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the executor which opens the connections of the checks outside of a pool
+     */
+    Executor getConnector() {
+        return connector;
+    }
+
+    /**
+     * Stops the scheduler. The checks still scheduled are cancelled.
+     *
+     * @throws UnsupportedOperationException if this is the shared scheduler
+     */
+    @Override
+    public void close() {
+        if (shared) {
+            throw new UnsupportedOperationException("Shared health check scheduler cannot be closed");
+        }
+        executor.shutdownNow();
+        connector.shutdownNow();
+    }
+
+    private static final class SharedHolder {
+        private static final HealthCheckScheduler SHARED = new HealthCheckScheduler(DEFAULT_THREADS, true);
+    }
+}
@@ -0,0 +1,240 @@
+package org.task.dbcm.connectionmanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.task.dbcm.connectionmanager.datasource.CloseableDataSource;
+import org.task.dbcm.connectionmanager.datasource.ConnectionErrors;
+import org.task.dbcm.connectionmanager.datasource.PooledDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A node of a connection managed data source along with its circuit breaker and latency.
+ * <p>
+ * Only connection errors ({@link ConnectionErrors}), which mean the node is unreachable, are reported to
+ * the circuit breaker: the ones of a data source without a pool, the ones of the connection supplier which a pool
+ * attaches as the cause of a borrow timeout, and the ones raised by the statements of borrowed pooled connections.
+ * Other failures, e.g. wrong credentials of one caller or a timeout of a pool which is just exhausted, say nothing
+ * about the node. Borrowing from a pool reuses connections opened
+ * earlier, so only borrows from a data source without a pool and successful health checks count as successes.
+ * When the breaker opens the pool of the node, if there is one, is soft evicted: its connections to the dead
+ * database are taken out of use in one step instead of failing one by one on the next queries, and closed
+ * by the housekeeper of the pool rather than by the thread which has tripped the breaker. Every change of the breaker
+ * state is passed on to the state listener of the node.
+ * <p>
+ * A node whose pool is in standby keeps only a few validated connections open until it is promoted.
+ * <p>
+ * The latency of a node is an exponentially weighted moving average of three signals: the time to borrow
+ * a connection from the node, the time of the health check query and the execution time of the statements
+ * of the borrowed connections. The score used for the load balancing is their sum divided by the weight
+ * of the node, so a slow or overloaded node gets a worse score. The execution time is reported by the pool,
+ * so a node without a pool is scored by the first two signals only.
+ */
+final class ManagedNode {
+    private static final Logger LOG = LoggerFactory.getLogger(ManagedNode.class);
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String name;
+    private final CloseableDataSource dataSource;
+    private final int weight;
+    private final HealthCheckConfig healthCheckConfig;
+
+    private final CircuitBreaker circuitBreaker;
+    private volatile Consumer<CircuitBreaker.State> stateListener = state -> { };
+    private final AtomicLong acquireLatency = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicLong probeLatency = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicLong queryLatency = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    ManagedNode(String name, CloseableDataSource dataSource, int weight, HealthCheckConfig healthCheckConfig) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight of node " + name + " must be positive: " + weight);
+        }
+        this.name = Objects.requireNonNull(name, "Name cannot be null");
+        this.dataSource = Objects.requireNonNull(dataSource, "DataSource cannot be null");
+        this.weight = weight;
+        this.healthCheckConfig = Objects.requireNonNull(healthCheckConfig, "HealthCheckConfig cannot be null");
+        this.circuitBreaker = new CircuitBreaker(name, healthCheckConfig, this::onStateChange);
+        if (dataSource instanceof PooledDataSource) {
+            ((PooledDataSource) dataSource).setConnectionErrorListener(e -> circuitBreaker.onFailure());
+            ((PooledDataSource) dataSource).setQueryTimeListener(nanos -> update(queryLatency, nanos));
+        }
+    }
+
+    private void onStateChange(CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN && dataSource instanceof PooledDataSource) {
+            try {
+                ((PooledDataSource) dataSource).softEvict();
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to evict the connections of node {}:", name, e);
+            }
+        }
+        stateListener.accept(state);
+    }
+
+    void setStateListener(Consumer<CircuitBreaker.State> stateListener) {
+        this.stateListener = Objects.requireNonNull(stateListener, "StateListener cannot be null");
+    }
+
+    /**
+     * Puts the pool of the node, if there is one, in standby or promotes it.
+     */
+    void setStandby(boolean standby) {
+        if (dataSource instanceof PooledDataSource) {
+            LOG.debug("Node {} {}", name, standby ? "is in standby" : "has been promoted");
+            ((PooledDataSource) dataSource).setStandby(standby);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    CloseableDataSource getDataSource() {
+        return dataSource;
+    }
+
+    HealthCheckConfig getHealthCheckConfig() {
+        return healthCheckConfig;
+    }
+
+    /**
+     * @return false if the circuit breaker of the node is open
+     */
+    boolean isAvailable() {
+        return circuitBreaker.isAvailable();
+    }
+
+    /**
+     * @return whether the circuit breaker lets the next request through
+     */
+    boolean allowRequest() {
+        return circuitBreaker.allowRequest();
+    }
+
+    Connection getConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            onBorrowFailure(e);
+            throw e;
+        }
+        onAcquired(System.nanoTime() - startTime);
+        return connection;
+    }
+
+    Connection getConnection(String username, String password) throws SQLException {
+        long startTime = System.nanoTime();
+        Connection connection;
+        try {
+            connection = dataSource.getConnection(username, password);
+        } catch (SQLException | RuntimeException e) {
+            onBorrowFailure(e);
+            throw e;
+        }
+        onAcquired(System.nanoTime() - startTime);
+        return connection;
+    }
+
+    /**
+     * Borrows a connection without blocking from a pooled data source. A data source without a pool opens
+     * the connection on the executor, or on the calling thread if there is no executor.
+     *
+     * @param executor the executor which completes the future or null
+     */
+    CompletableFuture<Connection> getConnectionAsync(Executor executor) {
+        long startTime = System.nanoTime();
+        CompletableFuture<Connection> future;
+        if (dataSource instanceof PooledDataSource) {
+            PooledDataSource pooledDataSource = (PooledDataSource) dataSource;
+            future = executor != null ? pooledDataSource.getConnectionAsync(executor) : pooledDataSource.getConnectionAsync();
+        } else {
+            future = new CompletableFuture<>();
+            CompletableFuture<Connection> result = future;
+            Runnable borrow = () -> {
+                try {
+                    Connection connection = dataSource.getConnection();
+                    if (!result.complete(connection)) {
+                        connection.close();
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            };
+            if (executor == null) {
+                borrow.run();
+            } else {
+                try {
+                    executor.execute(borrow);
+                } catch (RejectedExecutionException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+        future.whenComplete((connection, e) -> {
+            if (e == null) {
+                onAcquired(System.nanoTime() - startTime);
+            } else if (!(e instanceof CancellationException)) {
+                onBorrowFailure(e);
+            }
+        });
+        return future;
+    }
+
+    private void onAcquired(long nanos) {
+        if (!(dataSource instanceof PooledDataSource)) {
+            circuitBreaker.onSuccess();
+        }
+        update(acquireLatency, nanos);
+    }
+
+    private void onBorrowFailure(Throwable e) {
+        if (ConnectionErrors.isConnectionError(e)) {
+            circuitBreaker.onFailure();
+        }
+    }
+
+    void onCheckSuccess(long nanos) {
+        update(probeLatency, nanos);
+        circuitBreaker.onCheckSuccess();
+    }
+
+    void onCheckFailure() {
+        circuitBreaker.onFailure();
+    }
+
+    /**
+     * @return the load balancing score of the node, the lower the better
+     */
+    double getScore() {
+        return (Double.longBitsToDouble(acquireLatency.get())
+                + Double.longBitsToDouble(probeLatency.get())
+                + Double.longBitsToDouble(queryLatency.get())) / weight;
+    }
+
+    private static void update(AtomicLong average, long sample) {
+        while (true) {
+            long current = average.get();
+            double value = Double.longBitsToDouble(current);
+            double updated = value + EWMA_ALPHA * (sample - value);
+            if (average.compareAndSet(current, Double.doubleToRawLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,40 @@
+package org.task.dbcm.connectionmanager;
+
+/**
+ * A thread-scoped hint that the connections borrowed by the current thread are used only for reading.
+ * Connection managed data sources in the {@link RoutingMode#READ_WRITE_SPLIT} mode route such connections
+ * to the replicas. Scopes can be nested, closing a scope restores the hint of the enclosing one:
+ * <pre>{@code
+ * try (ReadOnlyScope scope = ReadOnlyScope.open()) {
+ *     jdbcOperations.query(...);
+ * }
+ * }</pre>
+ */
+public final class ReadOnlyScope implements AutoCloseable {
+    private static final ThreadLocal<Boolean> READ_ONLY = new ThreadLocal<>();
+
+    private final Boolean previous;
+
+    private ReadOnlyScope(Boolean previous) {
+        this.previous = previous;
+    }
+
+    public static ReadOnlyScope open() {
+        ReadOnlyScope scope = new ReadOnlyScope(READ_ONLY.get());
+        READ_ONLY.set(Boolean.TRUE);
+        return scope;
+    }
+
+    public static boolean isReadOnly() {
+        return READ_ONLY.get() != null;
+    }
+
+    @Override
+    public void close() {
+        if (previous == null) {
+            READ_ONLY.remove();
+        } else {
+            READ_ONLY.set(previous);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.task.dbcm.connectionmanager;
+
+/**
+ * How a connection managed data source chooses between its primary and its replicas.
+ */
+public enum RoutingMode {
+    /**
+     * All connections come from the primary. While the primary is dead they come from the first alive replica
+     * in the configured order.
+     */
+    FAILOVER,
+    /**
+     * Read-only connections come from the alive replicas, which share them according to their latency and weight;
+     * all other connections are routed as in {@link #FAILOVER}. Reads fall back to the primary while no replica
+     * is alive.
+     */
+    READ_WRITE_SPLIT
+}
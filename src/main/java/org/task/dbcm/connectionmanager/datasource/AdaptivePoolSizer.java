@@ -0,0 +1,90 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives the size limit of an adaptively sized pool from the observed demand.
+ * <p>
+ * Every call compares the acquire and usage histograms with the previous call. By Little's law the number of
+ * connections in use is the arrival rate of borrows multiplied by the mean usage time, the target size is this
+ * number with some headroom. The pool grows right away to the target, and further by the number of waiting threads
+ * while borrowers wait or the mean acquire time of the interval is above the target acquire time. It shrinks
+ * towards the target only after the cool-down has passed since the last growth and by half of the difference
+ * at a time, so a short lull does not drop connections which are needed again a moment later.
+ * <p>
+ * The sizer is called only by the housekeeper, so its state is not shared.
+ */
+final class AdaptivePoolSizer {
+    private static final double HEADROOM = 1.25;
+
+    private final int minPoolSize;
+    private final int maxPoolSize;
+    private final long targetAcquireTimeNanos;
+    private final long shrinkCooldownNanos;
+
+    private long lastSampleTime;
+    private long lastAcquireCount;
+    private double lastAcquireSum;
+    private long lastUsageCount;
+    private double lastUsageSum;
+    private long lastGrowthTime;
+
+    AdaptivePoolSizer(int minPoolSize, int maxPoolSize, long targetAcquireTimeMillis, long shrinkCooldownMillis) {
+        this.minPoolSize = Math.max(1, Math.min(minPoolSize, maxPoolSize));
+        this.maxPoolSize = maxPoolSize;
+        this.targetAcquireTimeNanos = TimeUnit.MILLISECONDS.toNanos(targetAcquireTimeMillis);
+        this.shrinkCooldownNanos = TimeUnit.MILLISECONDS.toNanos(shrinkCooldownMillis);
+        this.lastSampleTime = System.nanoTime();
+        this.lastGrowthTime = lastSampleTime;
+    }
+
+    /**
+     * @return the size limit the pool starts with
+     */
+    int getInitialLimit(int minIdle) {
+        return clamp(Math.max(minPoolSize, minIdle));
+    }
+
+    /**
+     * @return the new size limit of the pool
+     */
+    int resize(int currentLimit, int waiters, LatencySnapshot acquireTime, LatencySnapshot usageTime) {
+        long now = System.nanoTime();
+        long interval = Math.max(1, now - lastSampleTime);
+        long borrows = acquireTime.getCount() - lastAcquireCount;
+        double acquireSum = acquireTime.getMean() * acquireTime.getCount();
+        long returns = usageTime.getCount() - lastUsageCount;
+        double usageSum = usageTime.getMean() * usageTime.getCount();
+
+        double meanAcquireTime = borrows > 0 ? (acquireSum - lastAcquireSum) / borrows : 0;
+        double meanUsageTime = returns > 0 ? (usageSum - lastUsageSum) / returns : 0;
+        double demand = (double) borrows / interval * meanUsageTime;
+        int target = clamp((int) Math.ceil(demand * HEADROOM));
+
+        lastSampleTime = now;
+        lastAcquireCount = acquireTime.getCount();
+        lastAcquireSum = acquireSum;
+        lastUsageCount = usageTime.getCount();
+        lastUsageSum = usageSum;
+
+        if (waiters > 0 || meanAcquireTime > targetAcquireTimeNanos) {
+            int limit = clamp(Math.max(target, currentLimit + Math.max(1, waiters)));
+            if (limit > currentLimit) {
+                lastGrowthTime = now;
+            }
+            return limit;
+        }
+        if (target > currentLimit) {
+            lastGrowthTime = now;
+            return target;
+        }
+        if (target < currentLimit && now - lastGrowthTime >= shrinkCooldownNanos) {
+            return clamp(currentLimit - Math.max(1, (currentLimit - target) / 2));
+        }
+        return currentLimit;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minPoolSize, Math.min(maxPoolSize, size));
+    }
+}
@@ -0,0 +1,310 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * The connection handed out for one borrow of a pooled connection. The handle carries the lease of its borrow:
+ * the first close returns the connection to the pool, after that every call fails and a repeated close does
+ * nothing, so a borrower which closes twice or keeps using a closed connection never touches the borrow
+ * of somebody else. All other calls are delegated to the pooled connection.
+ */
+final class BorrowedConnection implements Connection {
+    private final PooledConnection pooledConnection;
+    private final long lease;
+
+    BorrowedConnection(PooledConnection pooledConnection, long lease) {
+        this.pooledConnection = pooledConnection;
+        this.lease = lease;
+    }
+
+    PooledConnection getPooledConnection() {
+        return pooledConnection;
+    }
+
+    private PooledConnection pooledConnection() throws SQLException {
+        if (!pooledConnection.isLeased(lease)) {
+            throw new SQLException("Connection is closed");
+        }
+        return pooledConnection;
+    }
+
+    private PooledConnection checkClientInfo() throws SQLClientInfoException {
+        if (!pooledConnection.isLeased(lease)) {
+            throw new SQLClientInfoException("Connection is closed", null);
+        }
+        return pooledConnection;
+    }
+
+    @Override
+    public void close() {
+        pooledConnection.release(lease);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return !pooledConnection.isLeased(lease) || pooledConnection.isClosed();
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return pooledConnection().createStatement(this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return pooledConnection().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return pooledConnection().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        pooledConnection().setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return pooledConnection().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        pooledConnection().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        pooledConnection().rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return pooledConnection().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        pooledConnection().setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return pooledConnection().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        pooledConnection().setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return pooledConnection().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        pooledConnection().setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return pooledConnection().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return pooledConnection().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        pooledConnection().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return pooledConnection().createStatement(this, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return pooledConnection().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return pooledConnection().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        pooledConnection().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        pooledConnection().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return pooledConnection().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return pooledConnection().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return pooledConnection().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        pooledConnection().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        pooledConnection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return pooledConnection().createStatement(this, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return pooledConnection().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return pooledConnection().prepareStatement(this, sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return pooledConnection().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return pooledConnection().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return pooledConnection().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return pooledConnection().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return pooledConnection.isLeased(lease) && pooledConnection.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        checkClientInfo().setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        checkClientInfo().setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return pooledConnection().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return pooledConnection().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return pooledConnection().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return pooledConnection().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        pooledConnection().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return pooledConnection().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        pooledConnection().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        pooledConnection().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return pooledConnection().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return pooledConnection().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return pooledConnection().isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,196 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A prepared statement handed out from the statement cache. Closing it returns the underlying statement
+ * to the cache instead of closing it, so the next prepare of the same SQL on the connection skips the driver.
+ * <p>
+ * The settings changed through the wrapper, max rows, query timeout, fetch size, fetch direction and max field size,
+ * are tracked with dirty bits: their values are read right before the first change and restored when the wrapper
+ * is closed, so the next user of the statement gets the settings it has been prepared with. The open result set is
+ * closed when the wrapper is closed. A statement whose state cannot be restored, the cursor name, the escape
+ * processing, close on completion or results kept open by {@link #getMoreResults(int)}, is closed physically instead.
+ * Every call except {@link #close()} and {@link #isClosed()} fails once the wrapper is closed, as the underlying
+ * statement may be in use by another caller by then.
+ */
+final class CachedPreparedStatement extends DelegatingPreparedStatement {
+    private static final Logger LOG = LoggerFactory.getLogger(CachedPreparedStatement.class);
+
+    private static final int DIRTY_MAX_ROWS = 1;
+    private static final int DIRTY_QUERY_TIMEOUT = 1 << 1;
+    private static final int DIRTY_FETCH_SIZE = 1 << 2;
+    private static final int DIRTY_FETCH_DIRECTION = 1 << 3;
+    private static final int DIRTY_MAX_FIELD_SIZE = 1 << 4;
+
+    private final PreparedStatement underlyingStatement;
+    private final StatementCacheKey statementCacheKey;
+    private final StatementCache statementCache;
+    private final Connection connection;
+
+    private boolean closed;
+    private boolean reusable = true;
+    private int dirtyBits;
+    private int defaultMaxRows;
+    private int defaultQueryTimeout;
+    private int defaultFetchSize;
+    private int defaultFetchDirection;
+    private int defaultMaxFieldSize;
+
+    CachedPreparedStatement(PreparedStatement underlyingStatement,
+                            StatementCacheKey statementCacheKey,
+                            StatementCache statementCache,
+                            Connection connection) {
+        super(underlyingStatement);
+        this.underlyingStatement = underlyingStatement;
+        this.statementCacheKey = statementCacheKey;
+        this.statementCache = statementCache;
+        this.connection = connection;
+    }
+
+    @Override
+    PreparedStatement delegate() throws SQLException {
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        return underlyingStatement;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!reusable) {
+            statementCache.discard(underlyingStatement);
+            return;
+        }
+        try {
+            restoreSettings();
+        } catch (SQLException e) {
+            LOG.debug("Failed to restore the settings of a cached statement:", e);
+            statementCache.discard(underlyingStatement);
+            return;
+        }
+        statementCache.release(statementCacheKey, underlyingStatement);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || underlyingStatement.isClosed();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        delegate();
+        return connection;
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        captureMaxRows();
+        super.setMaxRows(max);
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        captureMaxRows();
+        super.setLargeMaxRows(max);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        if ((dirtyBits & DIRTY_QUERY_TIMEOUT) == 0) {
+            defaultQueryTimeout = delegate().getQueryTimeout();
+            dirtyBits |= DIRTY_QUERY_TIMEOUT;
+        }
+        super.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        if ((dirtyBits & DIRTY_FETCH_SIZE) == 0) {
+            defaultFetchSize = delegate().getFetchSize();
+            dirtyBits |= DIRTY_FETCH_SIZE;
+        }
+        super.setFetchSize(rows);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        if ((dirtyBits & DIRTY_FETCH_DIRECTION) == 0) {
+            defaultFetchDirection = delegate().getFetchDirection();
+            dirtyBits |= DIRTY_FETCH_DIRECTION;
+        }
+        super.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        if ((dirtyBits & DIRTY_MAX_FIELD_SIZE) == 0) {
+            defaultMaxFieldSize = delegate().getMaxFieldSize();
+            dirtyBits |= DIRTY_MAX_FIELD_SIZE;
+        }
+        super.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        super.setCursorName(name);
+        reusable = false;
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        super.setEscapeProcessing(enable);
+        reusable = false;
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        super.closeOnCompletion();
+        reusable = false;
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        if (current == KEEP_CURRENT_RESULT) {
+            reusable = false;
+        }
+        return super.getMoreResults(current);
+    }
+
+    private void captureMaxRows() throws SQLException {
+        if ((dirtyBits & DIRTY_MAX_ROWS) == 0) {
+            defaultMaxRows = delegate().getMaxRows();
+            dirtyBits |= DIRTY_MAX_ROWS;
+        }
+    }
+
+    private void restoreSettings() throws SQLException {
+        if (dirtyBits == 0) {
+            return;
+        }
+        if ((dirtyBits & DIRTY_MAX_ROWS) != 0) {
+            underlyingStatement.setMaxRows(defaultMaxRows);
+        }
+        if ((dirtyBits & DIRTY_QUERY_TIMEOUT) != 0) {
+            underlyingStatement.setQueryTimeout(defaultQueryTimeout);
+        }
+        if ((dirtyBits & DIRTY_FETCH_SIZE) != 0) {
+            underlyingStatement.setFetchSize(defaultFetchSize);
+        }
+        if ((dirtyBits & DIRTY_FETCH_DIRECTION) != 0) {
+            underlyingStatement.setFetchDirection(defaultFetchDirection);
+        }
+        if ((dirtyBits & DIRTY_MAX_FIELD_SIZE) != 0) {
+            underlyingStatement.setMaxFieldSize(defaultMaxFieldSize);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+
+/**
+ * Tells connection errors, which mean the connection or the database is gone, from errors of a statement itself.
+ */
+public final class ConnectionErrors {
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private ConnectionErrors() {
+    }
+
+    /**
+     * @return true if the exception or one of its causes is a {@link SQLNonTransientConnectionException}
+     * or has a SQLState of the connection exception class {@code 08}
+     */
+    public static boolean isConnectionError(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && sqlState.startsWith(CONNECTION_EXCEPTION_CLASS)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,259 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of connections created for one set of credentials, or without credentials, along with the threads
+ * waiting for them.
+ * Waiters are kept in a FIFO queue, so the longest waiting thread is served first. The partition also counts
+ * its waiters and the connections being opened for it, so the pool never opens more connections than needed.
+ * <p>
+ * The connections are kept in a copy-on-write array which is changed only when a connection is created
+ * or closed. Borrowing threads read the current snapshot and claim an idle connection by switching its state,
+ * so no lock is taken on the borrow path. The scan starts from a random position to spread concurrent
+ * borrowers over the array instead of making all of them compete for the first idle connection.
+ * <p>
+ * The size of a partition is the number of its connections including the ones being opened. A partition is
+ * starving while it has waiters which can get neither a free slot of the pool nor a connection taken from another
+ * partition. An empty credential partition is retired before it is dropped, a thread which finds its partition
+ * retired looks the credentials up again.
+ * <p>
+ * The partition keeps the last failure to open a connection for it, so a borrow which times out reports why
+ * its partition could not grow, but only if the failure has happened while the borrow was waiting.
+ */
+final class ConnectionPartition {
+    private static final PooledConnection[] EMPTY = new PooledConnection[0];
+
+    private final boolean credentials;
+    private final String username;
+    private final String password;
+
+    private final Lock modificationLock = new ReentrantLock();
+    private volatile PooledConnection[] connections = EMPTY;
+
+    private final Queue<ConnectionWaiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waiterCount = new AtomicInteger();
+    private final AtomicInteger pendingCreations = new AtomicInteger();
+    private final AtomicBoolean starving = new AtomicBoolean();
+    private volatile boolean retired;
+    private volatile CreationFailure lastCreationFailure;
+
+    ConnectionPartition() {
+        this.credentials = false;
+        this.username = null;
+        this.password = null;
+    }
+
+    ConnectionPartition(String username, String password) {
+        this.credentials = true;
+        this.username = username;
+        this.password = password;
+    }
+
+    boolean isCredentials() {
+        return credentials;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    boolean matches(String username, String password) {
+        return credentials && Objects.equals(this.username, username) && Objects.equals(this.password, password);
+    }
+
+    /**
+     * @return the number of connections of the partition including the ones being opened
+     */
+    int size() {
+        return connections.length + pendingCreations.get();
+    }
+
+    /**
+     * Tries to claim one of the idle connections.
+     *
+     * @return claimed connection in the in-use state or null if there are no idle connections
+     */
+    PooledConnection claimIdle() {
+        PooledConnection[] snapshot = connections;
+        int size = snapshot.length;
+        if (size == 0) {
+            return null;
+        }
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            PooledConnection pooledConnection = snapshot[(start + i) % size];
+            if (pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE)) {
+                return pooledConnection;
+            }
+        }
+        return null;
+    }
+
+    PooledConnection[] getConnections() {
+        return connections;
+    }
+
+    void add(PooledConnection pooledConnection) {
+        modificationLock.lock();
+        try {
+            PooledConnection[] current = connections;
+            PooledConnection[] updated = new PooledConnection[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = pooledConnection;
+            connections = updated;
+        } finally {
+            modificationLock.unlock();
+        }
+    }
+
+    boolean remove(PooledConnection pooledConnection) {
+        modificationLock.lock();
+        try {
+            PooledConnection[] current = connections;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == pooledConnection) {
+                    PooledConnection[] updated = new PooledConnection[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    connections = updated;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            modificationLock.unlock();
+        }
+    }
+
+    void addWaiter(ConnectionWaiter waiter) {
+        waiterCount.incrementAndGet();
+        waiters.add(waiter);
+    }
+
+    void removeWaiter(ConnectionWaiter waiter) {
+        if (waiters.remove(waiter)) {
+            waiterCount.decrementAndGet();
+        }
+    }
+
+    ConnectionWaiter pollWaiter() {
+        ConnectionWaiter waiter = waiters.poll();
+        if (waiter != null) {
+            waiterCount.decrementAndGet();
+        }
+        return waiter;
+    }
+
+    boolean hasWaiters() {
+        return !waiters.isEmpty();
+    }
+
+    int getWaiterCount() {
+        return waiterCount.get();
+    }
+
+    int getPendingCreations() {
+        return pendingCreations.get();
+    }
+
+    boolean compareAndSetPendingCreations(int expected, int updated) {
+        return pendingCreations.compareAndSet(expected, updated);
+    }
+
+    void incrementPendingCreations() {
+        pendingCreations.incrementAndGet();
+    }
+
+    void decrementPendingCreations() {
+        pendingCreations.decrementAndGet();
+    }
+
+    boolean isStarving() {
+        return starving.get();
+    }
+
+    /**
+     * @return true if the partition was not starving before
+     */
+    boolean markStarving() {
+        return starving.compareAndSet(false, true);
+    }
+
+    /**
+     * @return true if the partition was starving before
+     */
+    boolean clearStarving() {
+        return starving.compareAndSet(true, false);
+    }
+
+    void setCreationFailure(SQLException e) {
+        lastCreationFailure = new CreationFailure(e, System.nanoTime());
+    }
+
+    void clearCreationFailure() {
+        if (lastCreationFailure != null) {
+            lastCreationFailure = null;
+        }
+    }
+
+    /**
+     * @param startTime the {@link System#nanoTime()} the borrow has started waiting at
+     * @return the last failure to open a connection for the partition if it has happened after the start time,
+     * otherwise null
+     */
+    SQLException getCreationFailureSince(long startTime) {
+        CreationFailure failure = lastCreationFailure;
+        return failure != null && failure.time - startTime >= 0 ? failure.exception : null;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Retires the partition if it has no connections, no connections being opened and no waiters. The flag is
+     * set only once the partition has been found empty, so a lookup never skips a partition which is in use.
+     * A thread registers itself as a waiter before it checks the retired flag and the partition checks again
+     * after setting the flag, so either the thread sees the flag or the partition sees the waiter.
+     *
+     * @return true if the partition has been retired
+     */
+    boolean retireIfEmpty() {
+        if (!isEmpty()) {
+            return false;
+        }
+        retired = true;
+        if (isEmpty()) {
+            return true;
+        }
+        retired = false;
+        return false;
+    }
+
+    private boolean isEmpty() {
+        return connections.length == 0 && pendingCreations.get() == 0 && waiterCount.get() == 0;
+    }
+
+    private static final class CreationFailure {
+        private final SQLException exception;
+        private final long time;
+
+        CreationFailure(SQLException exception, long time) {
+            this.exception = exception;
+            this.time = time;
+        }
+    }
+}
@@ -2,11 +2,70 @@ package org.task.dbcm.connectionmanager.datasource;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 public interface ConnectionPool extends AutoCloseable {
     Connection getConnection() throws SQLException;
     Connection getConnection(String username, String password) throws SQLException;
 
+    /**
+     * Borrows a connection without blocking the calling thread. The future fails with
+     * {@link java.sql.SQLTransientConnectionException} after the connection timeout, a connection which becomes
+     * available after the future has been cancelled or has failed goes back to the pool.
+     *
+     * @param executor the executor which completes the future or null to complete it on the thread which
+     *                 returns or opens the connection
+     */
+    CompletableFuture<Connection> getConnectionAsync(Executor executor);
+
+    /**
+     * Sets the listener which is called with the connection errors raised by the statements, commits and rollbacks
+     * of borrowed connections, on the thread which has got the error. Statements are instrumented while
+     * a listener is set.
+     *
+     * @param connectionErrorListener the listener or null to remove it
+     */
+    void setConnectionErrorListener(Consumer<SQLException> connectionErrorListener);
+
+    /**
+     * Sets the listener which is called with the execution time in nanoseconds of every statement of borrowed
+     * connections which has completed without an error, on the thread which has executed it. Statements are
+     * instrumented while a listener is set.
+     *
+     * @param queryTimeListener the listener or null to remove it
+     */
+    void setQueryTimeListener(LongConsumer queryTimeListener);
+
+    PoolMetrics getPoolMetrics();
+
+    /**
+     * Closes all connections of the pool: idle ones and borrowed ones, which break for their users.
+     * New connections are opened on demand.
+     */
+    void evictAll();
+
+    /**
+     * Closes the idle connections of the pool and the borrowed ones once they are returned. The idle connections
+     * are taken out of use right away and closed in the background, so the caller never waits for a dead database.
+     * New connections are opened on demand.
+     */
+    void softEvict();
+
+    /**
+     * Puts the pool in standby, where it keeps only {@code standbyIdle} warm connections, or promotes it back.
+     * Both directions open the missing idle connections right away.
+     */
+    void setStandby(boolean standby);
+
+    /**
+     * Opens a physical connection which is not part of the pool, e.g. for a health check of a pool whose connections
+     * are all in use. It does not wait for a free slot and the caller closes it.
+     */
+    Connection openDedicatedConnection() throws SQLException;
+
     @Override
     void close() throws SQLException;
 }
@@ -10,4 +10,161 @@ public final class ConnectionPoolConfig {
     private final Long connectionTTL;
     @NonNull
     private final Integer maxPoolSize;
+    /**
+     * Maximum time in milliseconds to wait for a connection when the pool is exhausted.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long connectionTimeout = 30_000L;
+    /**
+     * Whether a platform thread should first try to reuse the connections it has returned recently.
+     */
+    @NonNull
+    @Builder.Default
+    private final Boolean threadAffinity = false;
+    /**
+     * Time in milliseconds after which an idle connection is closed, 0 keeps idle connections open.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long idleTimeout = 600_000L;
+    /**
+     * Period in milliseconds of the background housekeeping which retires and validates idle connections.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long housekeepingPeriod = 30_000L;
+    /**
+     * Maximum time in milliseconds to wait for the validation of an idle connection.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long validationTimeout = 5_000L;
+    /**
+     * Minimum number of idle connections the housekeeper keeps open for calls without credentials.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer minIdle = 0;
+    /**
+     * How the first {@code minIdle} connections are opened when the pooled data source is created.
+     */
+    @NonNull
+    @Builder.Default
+    private final PrefillMode prefill = PrefillMode.NONE;
+    /**
+     * Number of background threads which open physical connections.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer adderThreads = 2;
+    /**
+     * Name of the pool used in the metrics and in the JMX object name, a unique name is generated when it is null.
+     */
+    private final String poolName;
+    /**
+     * Whether the pool metrics are registered as an MBean in the platform MBean server.
+     */
+    @NonNull
+    @Builder.Default
+    private final Boolean registerMBean = true;
+    /**
+     * Maximum number of prepared statements cached per connection, 0 disables the cache.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer statementCacheSize = 0;
+    /**
+     * Number of idle connections the housekeeper keeps open and validated instead of {@code minIdle}
+     * while the pool is in standby.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer standbyIdle = 1;
+    /**
+     * Maximum number of connections of one set of credentials, {@code maxPoolSize} when it is null.
+     */
+    private final Integer maxPartitionSize;
+    /**
+     * Number of connections of one set of credentials which are never taken away by other credentials.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer minPartitionSize = 0;
+    /**
+     * Whether the size limit of the pool follows the demand between {@code minPoolSize} and {@code maxPoolSize}
+     * instead of being fixed at {@code maxPoolSize}.
+     */
+    @NonNull
+    @Builder.Default
+    private final Boolean adaptiveSizing = false;
+    /**
+     * Lower bound of the size limit of an adaptively sized pool.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer minPoolSize = 1;
+    /**
+     * Mean acquire time in milliseconds above which an adaptively sized pool grows.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long targetAcquireTime = 10L;
+    /**
+     * Time in milliseconds after the last growth before an adaptively sized pool shrinks.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long shrinkCooldown = 60_000L;
+    /**
+     * Time in milliseconds after which a borrowed connection is reported as a possible leak, 0 disables the detection.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long leakDetectionThreshold = 0L;
+    /**
+     * The stack trace of the borrower is captured on one of this many borrows, the other leaks are reported
+     * with the current stack of the borrowing thread.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer leakTraceSampling = 10;
+    /**
+     * Whether a leaked connection is closed and replaced, so the pool does not run out of connections.
+     */
+    @NonNull
+    @Builder.Default
+    private final Boolean reclaimLeakedConnections = false;
+    /**
+     * Maximum number of normalized SQL texts the query statistics keep, 0 disables the instrumentation of statements.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer queryStatisticsSize = 0;
+    /**
+     * Time in milliseconds from which a statement execution is written to the slow query log, 0 logs only
+     * the sampled executions.
+     */
+    @NonNull
+    @Builder.Default
+    private final Long slowQueryThreshold = 0L;
+    /**
+     * One of this many statement executions is written to the slow query log regardless of its time,
+     * 0 disables the sampling. The slow query log is disabled when neither the threshold nor the sampling is set.
+     * The entries are written at info level to the {@code org.task.dbcm.slowquery} logger.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer slowQuerySampling = 0;
+    /**
+     * Maximum number of slow query log entries waiting to be written, further entries are dropped.
+     */
+    @NonNull
+    @Builder.Default
+    private final Integer slowQueryLogCapacity = 1024;
+    /**
+     * Name of the node of a connection managed data source the pool belongs to, set by the factory
+     * and reported in the slow query log.
+     */
+    private final String nodeName;
 }
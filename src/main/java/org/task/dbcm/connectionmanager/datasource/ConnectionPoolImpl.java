@@ -3,199 +3,1372 @@ package org.task.dbcm.connectionmanager.datasource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
+import java.sql.SQLTransientConnectionException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * A connection pool which stores created connections to avoid unnecessary creation.
+ * <p>
+ * Connections are grouped into partitions by credentials. A connection is borrowed by
+ * switching its state from idle to in-use, so borrowing threads never take a global lock. If there are no idle
+ * connections the calling thread registers itself as a waiter of the partition and parks until a connection
+ * is handed over to it.
+ * <p>
+ * Returned connections are handed over directly to the longest waiting thread, so waiters are served in FIFO
+ * order and never re-poll the pool. A waiter gives up after the connection timeout and gets
+ * {@link SQLTransientConnectionException}.
+ * <p>
+ * An asynchronous borrow registers a waiter without a thread. The thread which hands a connection over to it
+ * completes its future right away, or passes the completion to the executor of the borrow. The future fails with
+ * {@link SQLTransientConnectionException} after the connection timeout. A connection which arrives after the
+ * future has been cancelled or has timed out is returned to the pool, so it never leaks.
+ * <p>
+ * Physical connections are never opened on the calling thread. A waiting thread requests a new connection
+ * from the adder executor and keeps waiting for whichever connection comes first: the new one or one returned
+ * by another thread. A slot for a new connection is reserved by incrementing the connection counter with CAS
+ * while it is below the maximum pool size. Requests are collapsed: a partition never has more connections
+ * being opened than threads waiting for them.
+ * <p>
+ * With thread affinity enabled every thread keeps a short list of the connections it has returned. The next
+ * borrow from the same thread tries to claim one of them first, so a thread which borrows and returns
+ * connections in a loop keeps using the same connection without touching the shared partition. Virtual threads
+ * are short-lived and numerous, so they never use thread affinity: it would keep a list per virtual thread
+ * which is hardly ever reused.
+ * <p>
+ * The pool never blocks while holding a monitor. Waiting threads are parked with {@link LockSupport}, the locks
+ * of the partitions are held only to copy an array, and physical connections are opened, validated and closed
+ * without any lock held, so virtual threads borrowing connections do not pin their carrier threads.
+ * <p>
+ * Connections are never checked on the borrow path, which allocates nothing but the {@link BorrowedConnection}
+ * handed out and does not log: unlike the rest of the pool, the methods borrowing and returning connections
+ * do not trace their calls. A background housekeeper periodically retires idle connections whose time to live
+ * is over, which have been idle for too long or which fail the validation.
+ * Retired connections are replaced in the background, so callers only receive connections which have passed
+ * the checks. Every connection gets a random jitter subtracted from its time to live, so connections created
+ * at the same moment are not retired at the same moment. Connections which expire while being borrowed
+ * are retired by the housekeeper once they are returned.
+ * <p>
+ * The housekeeper also keeps at least {@code minIdle} idle connections for calls without credentials:
+ * idle connections are not closed by the idle timeout below this number and missing ones are opened.
+ * A pool in standby, e.g. of a database which takes traffic only after a failover, keeps {@code standbyIdle}
+ * connections instead. They are validated by the housekeeper like any idle connection, so they are ready
+ * when the pool is promoted and opens the rest of its {@code minIdle} connections in parallel.
+ * <p>
+ * With adaptive sizing new slots are reserved only below the current size limit instead of the maximum pool size.
+ * The housekeeper adjusts the limit periodically with {@link AdaptivePoolSizer} from the acquire and usage times
+ * and closes idle connections above a lowered limit.
+ * <p>
+ * With the leak detection enabled every borrow is tracked and the housekeeper reports connections borrowed
+ * for longer than the threshold once per borrow, at warn level. Capturing a stack trace is expensive, so only
+ * a sample of the borrows records where the connection has been borrowed, the other reports show the current stack
+ * of the borrowing thread instead. Leaked connections can be reclaimed: they are closed under their borrower and replaced.
+ * <p>
+ * Every connection belongs to the generation of the pool it has been opened in. Eviction starts a new generation:
+ * idle connections of older generations are closed right away and borrowed ones when they are returned or claimed,
+ * so the whole pool is replaced in one step, e.g. when its database has failed over.
+ * <p>
+ * Credential partitions are looked up by the username and then by comparing the password with the one the
+ * partition has been created with, so a call does not allocate a key. The password is kept once per partition
+ * because new connections of the partition are opened with it. Every partition is limited by
+ * {@code maxPartitionSize}. When the pool is full a partition which has waiters takes a slot from a partition
+ * with more connections: an idle connection of the other partition is closed and a new one is opened in its slot.
+ * If no idle connection can be taken the partition is starving and the next connection returned to a partition
+ * which is larger than its fair share is closed to make room, so the connections converge to an equal share
+ * of the partitions in use. The first {@code minPartitionSize} connections of a partition are never taken away.
+ * Credential partitions which have become empty are dropped by the housekeeper.
+ * <p>
+ * Every pool keeps {@link PoolMetrics}: acquire and usage times are recorded on the borrow and return paths,
+ * created, evicted and expired connections are counted where they happen. The metrics are registered as an MBean
+ * unless disabled in the config. With the query statistics or the slow query log enabled the connections instrument
+ * their statements, the statistics are read through the metrics as well.
  */
 final class ConnectionPoolImpl implements ConnectionPool {
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionPoolImpl.class);
 
-    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+            .withZone(ZoneId.systemDefault());
+
+    private static final int MAX_THREAD_LOCAL_CONNECTIONS = 16;
+    private static final int TTL_JITTER_DIVISOR = 40;
+    private static final long CREATION_RETRY_DELAY = 250;
+    private static final long SIZING_PERIOD = 250;
+    private static final long MIN_LEAK_SCAN_PERIOD = 100;
+
+    private static final AtomicLong POOL_SEQUENCE = new AtomicLong();
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
 
     private final ConnectionSupplier connectionSupplier;
     private final CredentialConnectionSupplier credentialConnectionSupplier;
 
     private final long connectionTTL;
     private final int maxPoolSize;
+    private final long connectionTimeout;
+    private final long idleTimeout;
+    private final int validationTimeoutSeconds;
+    private final int minIdle;
+    private final int standbyIdle;
+    private final int statementCacheSize;
+    private final QueryStatistics queryStatistics;
+    private final SlowQueryLog slowQueryLog;
+    private final QueryInstrumentation queryInstrumentation;
+    private final int maxPartitionSize;
+    private final long leakDetectionThresholdNanos;
+    private final int leakTraceSampling;
+    private final boolean reclaimLeakedConnections;
+    private final int minPartitionSize;
 
-    private final Object monitor = new Object();
+    private final Set<ConnectionPartition> partitions;
+    private final ConcurrentMap<String, ConnectionPartition[]> credentialPartitions;
+    private final AtomicInteger starvingPartitions;
+    private final ConnectionPartition defaultPartition;
+    private final AtomicInteger connectionNumber;
+    private final AtomicInteger generation;
+    private final ThreadLocal<List<PooledConnection>> threadLocalConnections;
+    private final ScheduledExecutorService housekeeper;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService adder;
+    private final PoolMetricsImpl poolMetrics;
+    private final AdaptivePoolSizer adaptivePoolSizer;
 
-    private ConcurrentMap<PooledConnectionKey, BlockingDeque<PooledConnection>> pooledConnections;
-    private AtomicInteger connectionNumber;
-    private Set<PooledConnection> activePooledConnections;
+    private volatile int poolSizeLimit;
+    private volatile boolean standby;
+    private volatile boolean closed;
 
     ConnectionPoolImpl(ConnectionSupplier connectionSupplier,
                        CredentialConnectionSupplier credentialConnectionSupplier,
-                       long connectionTTL,
-                       int maxPoolSize) {
+                       ConnectionPoolConfig connectionPoolConfig) {
         this.connectionSupplier = Objects.requireNonNull(connectionSupplier, "ConnectionSupplier cannot be null");
         this.credentialConnectionSupplier = Objects.requireNonNull(credentialConnectionSupplier, "CredentialConnectionSupplier cannot be null");
-        this.connectionTTL = connectionTTL;
-        this.maxPoolSize = maxPoolSize;
+        Objects.requireNonNull(connectionPoolConfig, "ConnectionPoolConfig cannot be null");
+        this.connectionTTL = connectionPoolConfig.getConnectionTTL();
+        this.maxPoolSize = connectionPoolConfig.getMaxPoolSize();
+        this.connectionTimeout = connectionPoolConfig.getConnectionTimeout();
+        this.idleTimeout = connectionPoolConfig.getIdleTimeout();
+        this.validationTimeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(connectionPoolConfig.getValidationTimeout() + 999));
+        this.minIdle = connectionPoolConfig.getMinIdle();
+        this.standbyIdle = connectionPoolConfig.getStandbyIdle();
+        this.statementCacheSize = connectionPoolConfig.getStatementCacheSize();
+        this.maxPartitionSize = connectionPoolConfig.getMaxPartitionSize() != null ? connectionPoolConfig.getMaxPartitionSize() : maxPoolSize;
+        this.minPartitionSize = connectionPoolConfig.getMinPartitionSize();
+        this.leakDetectionThresholdNanos = TimeUnit.MILLISECONDS.toNanos(connectionPoolConfig.getLeakDetectionThreshold());
+        this.leakTraceSampling = Math.max(1, connectionPoolConfig.getLeakTraceSampling());
+        this.reclaimLeakedConnections = connectionPoolConfig.getReclaimLeakedConnections();
 
-        this.pooledConnections = new ConcurrentHashMap<>();
+        this.partitions = ConcurrentHashMap.newKeySet();
+        this.credentialPartitions = new ConcurrentHashMap<>();
+        this.starvingPartitions = new AtomicInteger(0);
+        this.defaultPartition = new ConnectionPartition();
+        this.partitions.add(defaultPartition);
         this.connectionNumber = new AtomicInteger(0);
-        this.activePooledConnections = Collections.synchronizedSet(new HashSet<>());
+        this.generation = new AtomicInteger(0);
+        this.threadLocalConnections = connectionPoolConfig.getThreadAffinity()
+                ? ThreadLocal.withInitial(() -> new ArrayList<>(MAX_THREAD_LOCAL_CONNECTIONS))
+                : null;
+
+        this.poolMetrics = new PoolMetricsImpl(
+                connectionPoolConfig.getPoolName() != null ? connectionPoolConfig.getPoolName() : "pool-" + POOL_SEQUENCE.incrementAndGet(),
+                this);
+        if (connectionPoolConfig.getRegisterMBean()) {
+            poolMetrics.registerMBean();
+        }
+
+        this.queryStatistics = connectionPoolConfig.getQueryStatisticsSize() > 0
+                ? new QueryStatistics(connectionPoolConfig.getQueryStatisticsSize())
+                : null;
+        this.slowQueryLog = connectionPoolConfig.getSlowQueryThreshold() > 0 || connectionPoolConfig.getSlowQuerySampling() > 0
+                ? new SlowQueryLog(
+                        poolMetrics.getPoolName(),
+                        connectionPoolConfig.getNodeName(),
+                        connectionPoolConfig.getSlowQueryThreshold(),
+                        connectionPoolConfig.getSlowQuerySampling(),
+                        connectionPoolConfig.getSlowQueryLogCapacity())
+                : null;
+        this.queryInstrumentation = new QueryInstrumentation(queryStatistics, slowQueryLog);
+
+        if (connectionPoolConfig.getAdaptiveSizing()) {
+            this.adaptivePoolSizer = new AdaptivePoolSizer(
+                    connectionPoolConfig.getMinPoolSize(),
+                    maxPoolSize,
+                    connectionPoolConfig.getTargetAcquireTime(),
+                    connectionPoolConfig.getShrinkCooldown());
+            this.poolSizeLimit = adaptivePoolSizer.getInitialLimit(minIdle);
+        } else {
+            this.adaptivePoolSizer = null;
+            this.poolSizeLimit = maxPoolSize;
+        }
+
+        this.adder = createAdder(connectionPoolConfig.getAdderThreads(), maxPoolSize);
+        this.housekeeper = createHousekeeper();
+        this.timer = createTimer();
+        this.housekeeper.scheduleWithFixedDelay(
+                this::housekeep,
+                connectionPoolConfig.getHousekeepingPeriod(),
+                connectionPoolConfig.getHousekeepingPeriod(),
+                TimeUnit.MILLISECONDS);
+        if (adaptivePoolSizer != null) {
+            this.housekeeper.scheduleWithFixedDelay(this::resize, SIZING_PERIOD, SIZING_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        if (leakDetectionThresholdNanos > 0) {
+            long leakScanPeriod = Math.max(MIN_LEAK_SCAN_PERIOD, connectionPoolConfig.getLeakDetectionThreshold() / 2);
+            this.housekeeper.scheduleWithFixedDelay(this::detectLeaks, leakScanPeriod, leakScanPeriod, TimeUnit.MILLISECONDS);
+        }
     }
 
-    @Override
-    public Connection getConnection() throws SQLException {
+    /**
+     * @return a handle of {@code Thread.isVirtual()} or null if the runtime has no virtual threads
+     */
+    private static MethodHandle findIsVirtual() {
         try {
-            LOG.trace("ConnectionPoolImpl::getConnection() started");
-            return getConnection(new PooledConnectionKey());
-        } finally {
-            LOG.trace("ConnectionPoolImpl::getConnection() finished");
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
         }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to check if the thread is virtual", e);
+        }
+    }
+
+    private static ScheduledExecutorService createHousekeeper() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("ConnectionPool-housekeeper"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * The timer only fires the timeouts of asynchronous borrows. It is separate from the housekeeper, whose
+     * validations, closes and creation retries may take seconds, so the timeouts are never late.
+     */
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("ConnectionPool-timer"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Every task of the adder holds a reserved slot, so the queue never holds more than maxPoolSize tasks.
+     */
+    private static ExecutorService createAdder(int adderThreads, int maxPoolSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                adderThreads,
+                adderThreads,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, maxPoolSize)),
+                daemonThreadFactory("ConnectionPool-adder"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return lease(getConnection(defaultPartition));
     }
 
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        try {
-            LOG.trace("ConnectionPoolImpl::getConnection(String username, String password) started");
-            return getConnection(new PooledConnectionKey(username, password));
-        } finally {
-            LOG.trace("ConnectionPoolImpl::getConnection(String username, String password) finished");
+        return lease(getConnection(getPartition(username, password)));
+    }
+
+    /**
+     * @return the handle of a new borrow of a connection claimed by the current thread
+     */
+    private static Connection lease(PooledConnection pooledConnection) {
+        return new BorrowedConnection(pooledConnection, pooledConnection.lease());
+    }
+
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync(Executor executor) {
+        return getConnectionAsync(defaultPartition, executor);
+    }
+
+    @Override
+    public void setConnectionErrorListener(Consumer<SQLException> connectionErrorListener) {
+        queryInstrumentation.setConnectionErrorListener(connectionErrorListener);
+    }
+
+    @Override
+    public void setQueryTimeListener(LongConsumer queryTimeListener) {
+        queryInstrumentation.setQueryTimeListener(queryTimeListener);
+    }
+
+    @Override
+    public PoolMetrics getPoolMetrics() {
+        return poolMetrics;
+    }
+
+    /**
+     * @return the query statistics or an empty list if they are disabled
+     */
+    List<QueryStatistic> getQueryStatistics() {
+        return queryStatistics != null ? queryStatistics.snapshot() : Collections.emptyList();
+    }
+
+    @Override
+    public void evictAll() {
+        LOG.trace("ConnectionPoolImpl::evictAll() started");
+        LOG.debug("Evicting all connections, generation {}", generation.incrementAndGet());
+        for (ConnectionPartition partition : partitions) {
+            for (PooledConnection pooledConnection : partition.getConnections()) {
+                if (pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_EVICTING)
+                        || pooledConnection.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_EVICTING)) {
+                    retireConnection(pooledConnection, false);
+                }
+            }
+        }
+        LOG.trace("ConnectionPoolImpl::evictAll() finished");
+    }
+
+    @Override
+    public void softEvict() {
+        LOG.trace("ConnectionPoolImpl::softEvict() started");
+        LOG.debug("Evicting idle connections, generation {}", generation.incrementAndGet());
+        for (ConnectionPartition partition : partitions) {
+            for (PooledConnection pooledConnection : partition.getConnections()) {
+                if (pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_EVICTING)) {
+                    submitRetirement(pooledConnection, false);
+                }
+            }
         }
+        LOG.trace("ConnectionPoolImpl::softEvict() finished");
+    }
+
+    @Override
+    public void setStandby(boolean standby) {
+        LOG.trace("ConnectionPoolImpl::setStandby(boolean standby) started");
+        this.standby = standby;
+        int missing = getTargetIdle() - countIdle(defaultPartition) - defaultPartition.getPendingCreations();
+        if (missing > 0 && !closed) {
+            fill(missing);
+        }
+        LOG.trace("ConnectionPoolImpl::setStandby(boolean standby) finished");
+    }
+
+    @Override
+    public Connection openDedicatedConnection() throws SQLException {
+        checkNotClosed();
+        return connectionSupplier.get();
+    }
+
+    /**
+     * @return the number of idle connections the housekeeper keeps for calls without credentials
+     */
+    private int getTargetIdle() {
+        return standby ? standbyIdle : minIdle;
     }
 
     @Override
     public void close() {
         LOG.trace("ConnectionPoolImpl::close() started");
-        for (PooledConnection connection : activePooledConnections) {
-            closePooledConnection(connection);
+        closed = true;
+        poolMetrics.unregisterMBean();
+        housekeeper.shutdownNow();
+        timer.shutdownNow();
+        adder.shutdownNow();
+        if (slowQueryLog != null) {
+            slowQueryLog.close();
         }
-        for (BlockingDeque<PooledConnection> connections : pooledConnections.values()) {
-            for (PooledConnection connection : connections) {
+        for (ConnectionPartition partition : partitions) {
+            for (PooledConnection connection : partition.getConnections()) {
+                connection.setState(PooledConnection.STATE_EVICTING);
                 closePooledConnection(connection);
             }
+            ConnectionWaiter waiter;
+            while ((waiter = partition.pollWaiter()) != null) {
+                waiter.poolClosed();
+            }
         }
         LOG.trace("ConnectionPoolImpl::close() finished");
     }
 
-    private BlockingDeque<PooledConnection> getPooledConnectionDeque(PooledConnectionKey pooledConnectionKey) {
-        return pooledConnections.computeIfAbsent(pooledConnectionKey, k -> new LinkedBlockingDeque<>());
+    int getMaxPoolSize() {
+        return maxPoolSize;
     }
 
-    private PooledConnection getConnection(PooledConnectionKey pooledConnectionKey) throws SQLException {
-        synchronized (monitor) {
-            try {
-                LOG.trace("ConnectionPoolImpl::getConnection(PooledConnection pooledConnection) started");
+    int getPoolSizeLimit() {
+        return poolSizeLimit;
+    }
 
-                BlockingDeque<PooledConnection> pooledConnectionsDeque = getPooledConnectionDeque(pooledConnectionKey);
-                LOG.debug("Amount of current connections: {}", connectionNumber.get());
-                if (connectionNumber.get() < maxPoolSize && pooledConnectionsDeque.isEmpty()) {
-                    pooledConnectionsDeque.add(createNewConnection(pooledConnectionKey));
+    int getTotalConnections() {
+        return connectionNumber.get();
+    }
+
+    int countConnections(int state) {
+        int count = 0;
+        for (ConnectionPartition partition : partitions) {
+            for (PooledConnection pooledConnection : partition.getConnections()) {
+                if (pooledConnection.getState() == state) {
+                    count++;
                 }
+            }
+        }
+        return count;
+    }
+
+    int countWaiters() {
+        int count = 0;
+        for (ConnectionPartition partition : partitions) {
+            count += partition.getWaiterCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the live partition of the credentials, a new one is created if there is none
+     */
+    private ConnectionPartition getPartition(String username, String password) {
+        String bucket = username != null ? username : "";
+        ConnectionPartition partition = findPartition(credentialPartitions.get(bucket), username, password);
+        if (partition != null) {
+            return partition;
+        }
+        ConnectionPartition[] updated = credentialPartitions.compute(bucket, (key, current) -> {
+            if (findPartition(current, username, password) != null) {
+                return current;
+            }
+            ConnectionPartition created = new ConnectionPartition(username, password);
+            partitions.add(created);
+            LOG.debug("Created a partition for user {}", username);
+            return appendPartition(current, created);
+        });
+        return findPartition(updated, username, password);
+    }
 
-                LOG.debug("Getting connection from the queue...");
-                PooledConnection pooledConnection;
-                while ((pooledConnection = pooledConnectionsDeque.poll()) == null) {
-                    // waiting for an available connection
+    private static ConnectionPartition findPartition(ConnectionPartition[] candidates, String username, String password) {
+        if (candidates != null) {
+            for (ConnectionPartition candidate : candidates) {
+                if (candidate.matches(username, password) && !candidate.isRetired()) {
+                    return candidate;
                 }
-                LOG.debug("Connection got from the queue");
+            }
+        }
+        return null;
+    }
 
-                if (closeIfAlreadyClosed(pooledConnection) || closeIfTTLOver(pooledConnection)) {
-                    pooledConnection = createNewConnection(pooledConnectionKey);
+    /**
+     * @return a copy of the partitions without the retired ones and with the given one appended
+     */
+    private static ConnectionPartition[] appendPartition(ConnectionPartition[] current, ConnectionPartition partition) {
+        List<ConnectionPartition> updated = new ArrayList<>();
+        if (current != null) {
+            for (ConnectionPartition candidate : current) {
+                if (!candidate.isRetired()) {
+                    updated.add(candidate);
                 }
-                activePooledConnections.add(pooledConnection);
-                return pooledConnection;
-            } finally {
-                LOG.trace("ConnectionPoolImpl::getConnection(PooledConnection pooledConnection) finished");
             }
         }
+        updated.add(partition);
+        return updated.toArray(new ConnectionPartition[0]);
+    }
+
+    /**
+     * Drops the credential partitions which have no connections and no waiters.
+     */
+    private void dropEmptyPartitions() {
+        for (ConnectionPartition partition : partitions) {
+            if (partition != defaultPartition && partition.retireIfEmpty()) {
+                partitions.remove(partition);
+                credentialPartitions.computeIfPresent(
+                        partition.getUsername() != null ? partition.getUsername() : "",
+                        (key, current) -> {
+                            ConnectionPartition[] remaining = Arrays.stream(current)
+                                    .filter(candidate -> candidate != partition)
+                                    .toArray(ConnectionPartition[]::new);
+                            return remaining.length > 0 ? remaining : null;
+                        });
+                LOG.debug("Dropped the empty partition of user {}", partition.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Opens up to the given number of connections for calls without credentials in parallel.
+     * The maximum pool size is never exceeded.
+     *
+     * @return a future which is completed when every connection has been opened or has failed to open
+     */
+    CompletableFuture<Void> fill(int count) {
+        int slots = 0;
+        while (slots < count && reserveSlot()) {
+            slots++;
+        }
+        if (slots == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        LOG.debug("Opening {} connections in parallel", slots);
+        ExecutorService executor = Executors.newFixedThreadPool(slots, daemonThreadFactory("ConnectionPool-filler"));
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[slots];
+        for (int i = 0; i < slots; i++) {
+            defaultPartition.incrementPendingCreations();
+            futures[i] = CompletableFuture.runAsync(() -> addConnection(defaultPartition), executor);
+        }
+        return CompletableFuture.allOf(futures).whenComplete((result, e) -> executor.shutdown());
+    }
+
+    private PooledConnection getConnection(ConnectionPartition partition) throws SQLException {
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(connectionTimeout);
+        checkNotClosed();
+
+        PooledConnection pooledConnection = acquire(partition);
+        while (pooledConnection == null) {
+            pooledConnection = awaitConnection(partition, deadline);
+            if (pooledConnection == null) {
+                partition = getPartition(partition.getUsername(), partition.getPassword());
+            }
+        }
+        onBorrowed(pooledConnection, startTime);
+        return pooledConnection;
     }
 
-    private PooledConnection createNewConnection(PooledConnectionKey pooledConnectionKey) throws SQLException {
+    /**
+     * Borrows a connection without blocking. If no connection is idle an asynchronous waiter is registered
+     * in the partition and a timeout is scheduled on the timer.
+     *
+     * @param executor the executor which completes the future or null to complete it on the handing over thread
+     */
+    private CompletableFuture<Connection> getConnectionAsync(ConnectionPartition partition, Executor executor) {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new SQLException("Connection pool is closed"));
+            return future;
+        }
+
+        long startTime = System.nanoTime();
+        PooledConnection pooledConnection = acquire(partition);
+        if (pooledConnection != null) {
+            completeAsync(future, pooledConnection, startTime, executor);
+            return future;
+        }
+
+        AsyncConnectionWaiter waiter = new AsyncConnectionWaiter(partition, future, startTime, executor);
+        partition.addWaiter(waiter);
+        if (partition.isRetired()) {
+            partition.removeWaiter(waiter);
+            return getConnectionAsync(getPartition(partition.getUsername(), partition.getPassword()), executor);
+        }
+        pooledConnection = acquire(partition);
+        if (pooledConnection != null) {
+            waiter.cancel();
+            partition.removeWaiter(waiter);
+            completeAsync(future, pooledConnection, startTime, executor);
+            return future;
+        }
+
+        requestConnections(partition);
         try {
-            LOG.trace("ConnectionPoolImpl::createNewConnection(PooledConnection pooledConnection) started");
+            ScheduledFuture<?> timeout = timer.schedule(waiter::timeOut, connectionTimeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((connection, e) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            waiter.poolClosed();
+        }
+        future.whenComplete((connection, e) -> {
+            if (e != null) {
+                waiter.cancel();
+                partition.removeWaiter(waiter);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Records the acquire time of a connection handed out to a caller and tracks the borrow for the leak detection.
+     */
+    private void onBorrowed(PooledConnection pooledConnection, long startTime) {
+        long borrowTime = System.nanoTime();
+        pooledConnection.setBorrowTime(borrowTime, borrowTime - startTime);
+        poolMetrics.recordAcquireTime(borrowTime - startTime);
+        if (leakDetectionThresholdNanos > 0) {
+            Throwable borrowSite = ThreadLocalRandom.current().nextInt(leakTraceSampling) == 0
+                    ? new Throwable("Connection has been borrowed here")
+                    : null;
+            pooledConnection.trackBorrow(Thread.currentThread(), borrowSite, borrowTime);
+        }
+    }
+
+    private void onReturned(PooledConnection pooledConnection) {
+        poolMetrics.recordUsageTime(System.nanoTime() - pooledConnection.getBorrowTime());
+        if (leakDetectionThresholdNanos > 0) {
+            pooledConnection.untrackBorrow();
+        }
+    }
+
+    /**
+     * Completes the future of an asynchronous borrow with a connection in the in-use state. The connection
+     * is returned if the future has already been completed, e.g. cancelled or timed out.
+     */
+    private void completeAsync(CompletableFuture<Connection> future, PooledConnection pooledConnection, long startTime, Executor executor) {
+        Runnable completion = () -> {
+            onBorrowed(pooledConnection, startTime);
+            long lease = pooledConnection.lease();
+            if (!future.complete(new BorrowedConnection(pooledConnection, lease))) {
+                pooledConnection.release(lease);
+            }
+        };
+        if (executor == null) {
+            completion.run();
+            return;
+        }
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            returnConnection(pooledConnection);
+            future.completeExceptionally(new SQLException("Failed to complete the borrow on the executor", e));
+        }
+    }
+
+    /**
+     * A waiter of an asynchronous borrow which completes its future instead of unparking a thread.
+     */
+    private final class AsyncConnectionWaiter extends ConnectionWaiter {
+        private final ConnectionPartition partition;
+        private final CompletableFuture<Connection> future;
+        private final long startTime;
+        private final Executor executor;
+
+        AsyncConnectionWaiter(ConnectionPartition partition, CompletableFuture<Connection> future, long startTime, Executor executor) {
+            super(null);
+            this.partition = partition;
+            this.future = future;
+            this.startTime = startTime;
+            this.executor = executor;
+        }
+
+        @Override
+        void handedOver(PooledConnection pooledConnection) {
+            completeAsync(future, pooledConnection, startTime, executor);
+        }
+
+        @Override
+        void poolClosed() {
+            if (cancel() == null) {
+                future.completeExceptionally(new SQLException("Connection pool is closed"));
+            }
+        }
+
+        /**
+         * Fails the future on the executor of the borrow if there is one, so the callbacks of the caller
+         * never hold the timer up.
+         */
+        void timeOut() {
+            if (cancel() != null) {
+                return;
+            }
+            SQLException e = new SQLTransientConnectionException("Connection is not available, request timed out after "
+                    + connectionTimeout + " ms (total connections: " + connectionNumber.get() + ")",
+                    partition.getCreationFailureSince(startTime));
+            if (executor == null) {
+                future.completeExceptionally(e);
+                return;
+            }
+            try {
+                executor.execute(() -> future.completeExceptionally(e));
+            } catch (RejectedExecutionException rejected) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Claims one of the connections recently returned by the current thread or an idle connection of the partition.
+     * Claimed connections of an older generation are closed and the claim is repeated.
+     *
+     * @return a connection in the in-use state or null if the caller has to wait
+     */
+    private PooledConnection acquire(ConnectionPartition partition) {
+        while (true) {
+            PooledConnection pooledConnection = claimThreadLocal(partition);
+            if (pooledConnection == null) {
+                pooledConnection = partition.claimIdle();
+            }
+            if (pooledConnection == null || pooledConnection.getGeneration() == generation.get()) {
+                return pooledConnection;
+            }
+            retireInBackground(pooledConnection, false);
+        }
+    }
+
+    /**
+     * Tries to claim one of the connections recently returned by the current thread, starting from the most
+     * recent one. Connections which have been closed in the meantime are dropped from the list.
+     *
+     * @return claimed connection in the in-use state or null if none of them is idle
+     */
+    private PooledConnection claimThreadLocal(ConnectionPartition partition) {
+        if (threadLocalConnections == null || isVirtual(Thread.currentThread())) {
+            return null;
+        }
+        List<PooledConnection> connections = threadLocalConnections.get();
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            PooledConnection pooledConnection = connections.get(i);
+            if (pooledConnection.getState() == PooledConnection.STATE_EVICTING) {
+                connections.remove(i);
+            } else if (pooledConnection.getConnectionPartition() == partition
+                    && pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE)) {
+                connections.remove(i);
+                return pooledConnection;
+            }
+        }
+        return null;
+    }
+
+    private void rememberThreadLocal(PooledConnection pooledConnection) {
+        if (threadLocalConnections == null || isVirtual(Thread.currentThread())) {
+            return;
+        }
+        List<PooledConnection> connections = threadLocalConnections.get();
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            if (connections.get(i) == pooledConnection) {
+                return;
+            }
+        }
+        if (connections.size() == MAX_THREAD_LOCAL_CONNECTIONS) {
+            connections.remove(0);
+        }
+        connections.add(pooledConnection);
+    }
 
-            Connection connection = pooledConnectionKey.isCredentials()
-                    ? credentialConnectionSupplier.get(pooledConnectionKey.getUsername(), pooledConnectionKey.getPassword())
-                    : connectionSupplier.get();
+    /**
+     * Registers the current thread as a waiter of the partition, requests a new connection if the pool has a free
+     * slot and parks the thread until a connection is handed over or the deadline passes. The acquisition is
+     * repeated after the registration so a connection returned in between is not missed. While the thread waits
+     * new connections are requested again after every retry delay, as a slot may have been freed in another
+     * partition in the meantime.
+     *
+     * @return a connection in the in-use state or null if the partition has been retired
+     * @throws SQLTransientConnectionException if nothing has been handed over before the deadline
+     */
+    private PooledConnection awaitConnection(ConnectionPartition partition, long deadline) throws SQLException {
+        long waitStart = System.nanoTime();
+        ConnectionWaiter waiter = new ConnectionWaiter(Thread.currentThread());
+        partition.addWaiter(waiter);
+        try {
+            if (partition.isRetired()) {
+                return null;
+            }
+            PooledConnection pooledConnection = acquire(partition);
+            if (pooledConnection != null) {
+                giveBack(waiter.cancel());
+                return pooledConnection;
+            }
 
-            connectionNumber.incrementAndGet();
-            return new PooledConnection(
-                    pooledConnectionKey,
-                    System.currentTimeMillis(),
-                    this,
-                    connection);
+            requestConnections(partition);
+            LOG.debug("Waiting for an available connection...");
+            while (true) {
+                pooledConnection = waiter.getConnection();
+                if (pooledConnection != null) {
+                    return pooledConnection;
+                }
+                if (closed) {
+                    giveBack(waiter.cancel());
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    giveBack(waiter.cancel());
+                    throw new SQLException("Interrupted while waiting for a connection");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    pooledConnection = waiter.cancel();
+                    if (pooledConnection != null) {
+                        return pooledConnection;
+                    }
+                    throw new SQLTransientConnectionException("Connection is not available, request timed out after "
+                            + connectionTimeout + " ms (total connections: " + connectionNumber.get() + ")",
+                            partition.getCreationFailureSince(waitStart));
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CREATION_RETRY_DELAY)));
+                if (waiter.getConnection() == null) {
+                    requestConnections(partition);
+                }
+            }
         } finally {
-            LOG.trace("ConnectionPoolImpl::createNewConnection(PooledConnection pooledConnection) finished");
+            partition.removeWaiter(waiter);
+            if (!partition.hasWaiters() && partition.clearStarving()) {
+                starvingPartitions.decrementAndGet();
+            }
+        }
+    }
+
+    private void giveBack(PooledConnection pooledConnection) {
+        if (pooledConnection != null) {
+            returnConnection(pooledConnection);
+        }
+    }
+
+    /**
+     * Submits new connections to the adder while the partition has more waiters than connections being opened,
+     * is below its maximum size and the pool has free slots or another partition gives up an idle connection.
+     * Otherwise the partition is marked as starving.
+     */
+    private void requestConnections(ConnectionPartition partition) {
+        while (!closed) {
+            int pending = partition.getPendingCreations();
+            if (pending >= partition.getWaiterCount()) {
+                if (partition.clearStarving()) {
+                    starvingPartitions.decrementAndGet();
+                }
+                return;
+            }
+            if (partition.size() >= maxPartitionSize) {
+                return;
+            }
+            if (!reserveSlot()) {
+                if (!stealIdleConnection(partition)) {
+                    if (partition.markStarving()) {
+                        starvingPartitions.incrementAndGet();
+                    }
+                    return;
+                }
+                continue;
+            }
+            if (!partition.compareAndSetPendingCreations(pending, pending + 1)) {
+                connectionNumber.decrementAndGet();
+                continue;
+            }
+            submitConnection(partition);
         }
     }
 
-    private boolean closeIfAlreadyClosed(PooledConnection pooledConnection) {
+    /**
+     * Submits a new connection to the adder. The caller has already reserved a slot and incremented the number
+     * of pending creations of the partition.
+     */
+    private void submitConnection(ConnectionPartition partition) {
         try {
-            LOG.trace("ConnectionPoolImpl::closeIfAlreadyClosed(PooledConnection pooledConnection) started");
-            if (pooledConnection.isClosed()) {
-                closePooledConnection(pooledConnection);
-                return true;
+            adder.execute(() -> addConnection(partition));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Failed to submit a new connection:", e);
+            partition.decrementPendingCreations();
+            connectionNumber.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes an idle connection of a partition which is larger than the given one and opens a new connection
+     * for the given partition in its slot.
+     *
+     * @return true if a connection has been taken
+     */
+    private boolean stealIdleConnection(ConnectionPartition partition) {
+        int floor = Math.max(minPartitionSize, partition.size());
+        for (ConnectionPartition victim : partitions) {
+            if (victim != partition && victim.size() > floor) {
+                PooledConnection pooledConnection = victim.claimIdle();
+                if (pooledConnection != null) {
+                    LOG.debug("Taking an idle connection of user {} for user {}", victim.getUsername(), partition.getUsername());
+                    pooledConnection.setState(PooledConnection.STATE_EVICTING);
+                    transferSlot(pooledConnection, partition);
+                    return true;
+                }
             }
+        }
+        return false;
+    }
+
+    /**
+     * Closes a returned connection if a starving partition is smaller than its own partition and opens
+     * a new connection for the starving partition in its slot.
+     *
+     * @return true if the connection has been given up
+     */
+    private boolean yieldToStarving(PooledConnection pooledConnection) {
+        ConnectionPartition owner = pooledConnection.getConnectionPartition();
+        int size = owner.size();
+        if (size <= minPartitionSize) {
             return false;
-        } catch (SQLException e) {
-            LOG.debug("Failed to check isClosed on a connection:", e);
-            closePooledConnection(pooledConnection);
-            return true;
+        }
+        for (ConnectionPartition partition : partitions) {
+            if (partition != owner && partition.isStarving() && size > partition.size() + 1
+                    && partition.size() < maxPartitionSize
+                    && pooledConnection.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_EVICTING)) {
+                transferSlot(pooledConnection, partition);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes a connection which is in the evicting state and opens a new connection for the given partition
+     * in its slot, both on the adder.
+     */
+    private void transferSlot(PooledConnection pooledConnection, ConnectionPartition partition) {
+        partition.incrementPendingCreations();
+        try {
+            adder.execute(() -> {
+                if (pooledConnection.getConnectionPartition().remove(pooledConnection)) {
+                    closeUnderlyingConnection(pooledConnection);
+                }
+                addConnection(partition);
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Failed to submit a new connection:", e);
+            partition.decrementPendingCreations();
+            retireConnection(pooledConnection, false);
+        }
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = connectionNumber.get();
+            if (current >= poolSizeLimit) {
+                return false;
+            }
+            if (connectionNumber.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Frees the slot of a closed connection and requests new connections for partitions which have waiters.
+     */
+    private void releaseSlot() {
+        connectionNumber.decrementAndGet();
+        for (ConnectionPartition partition : partitions) {
+            if (partition.hasWaiters()) {
+                requestConnections(partition);
+            }
+        }
+    }
+
+    private void checkNotClosed() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+    }
+
+    /**
+     * Opens a new connection in an already reserved slot and hands it over to a waiter or makes it idle.
+     * Runs on the adder. The slot is freed if the connection cannot be opened and new connections are requested
+     * again after a delay if there are still waiters.
+     */
+    private void addConnection(ConnectionPartition partition) {
+        try {
+            LOG.trace("ConnectionPoolImpl::addConnection(ConnectionPartition partition) started");
+
+            PooledConnection pooledConnection;
+            try {
+                pooledConnection = openConnection(partition);
+            } finally {
+                partition.decrementPendingCreations();
+            }
+            partition.clearCreationFailure();
+            LOG.debug("Amount of current connections: {}", connectionNumber.get());
+
+            if (closed) {
+                pooledConnection.setState(PooledConnection.STATE_EVICTING);
+                closePooledConnection(pooledConnection);
+            } else {
+                handOver(pooledConnection);
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("Failed to open a new connection:", e);
+            partition.setCreationFailure(e instanceof SQLException ? (SQLException) e : new SQLException(e));
+            connectionNumber.decrementAndGet();
+            retryConnectionsLater(partition);
         } finally {
-            LOG.trace("ConnectionPoolImpl::closeIfAlreadyClosed(PooledConnection pooledConnection) finished");
+            LOG.trace("ConnectionPoolImpl::addConnection(ConnectionPartition partition) finished");
         }
     }
 
-    private boolean closeIfTTLOver(PooledConnection pooledConnection) {
+    private void retryConnectionsLater(ConnectionPartition partition) {
+        try {
+            housekeeper.schedule(() -> requestConnections(partition), CREATION_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Failed to schedule new connections:", e);
+        }
+    }
+
+    /**
+     * Opens a new physical connection for the partition in an already reserved slot.
+     *
+     * @return a new connection in the in-use state
+     */
+    private PooledConnection openConnection(ConnectionPartition partition) throws SQLException {
+        Connection connection = partition.isCredentials()
+                ? credentialConnectionSupplier.get(partition.getUsername(), partition.getPassword())
+                : connectionSupplier.get();
+        boolean autoCommit;
+        try {
+            autoCommit = connection.getAutoCommit();
+        } catch (SQLException | RuntimeException e) {
+            try {
+                connection.close();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        long creationTime = System.currentTimeMillis();
+        long jitter = ThreadLocalRandom.current().nextLong(connectionTTL / TTL_JITTER_DIVISOR + 1);
+        PooledConnection pooledConnection = new PooledConnection(
+                partition,
+                creationTime,
+                creationTime + connectionTTL - jitter,
+                generation.get(),
+                this,
+                connection,
+                autoCommit,
+                statementCacheSize,
+                queryInstrumentation);
+        partition.add(pooledConnection);
+        poolMetrics.connectionCreated();
+        return pooledConnection;
+    }
+
+    private void housekeep() {
         try {
-            LOG.trace("ConnectionPoolImpl::closeIfTTLOver(PooledConnection pooledConnection) started");
+            LOG.trace("ConnectionPoolImpl::housekeep() started");
 
             long currentTime = System.currentTimeMillis();
-            long aliveTime = currentTime - pooledConnection.getCreationTime();
-
-            LOG.debug("Checking connection alive time, created at [{}], current [{}], alive time [{} s], TTL [{} s]",
-                    FORMAT.format(new Date(pooledConnection.getCreationTime())),
-                    FORMAT.format(new Date(currentTime)),
-                    aliveTime / 1000.0,
-                    connectionTTL / 1000.0);
-            if ((currentTime - pooledConnection.getCreationTime()) > connectionTTL) {
-                LOG.debug("Connection time to live is over, closing and creating new");
-                closePooledConnection(pooledConnection);
-                return true;
+            for (ConnectionPartition partition : partitions) {
+                for (PooledConnection pooledConnection : partition.getConnections()) {
+                    if (closed) {
+                        return;
+                    }
+                    if (pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_RESERVED)) {
+                        checkIdleConnection(pooledConnection, currentTime);
+                    }
+                }
             }
-            return false;
+            maintainMinIdle();
+            dropEmptyPartitions();
+        } catch (RuntimeException e) {
+            LOG.debug("Housekeeping has failed:", e);
+        } finally {
+            LOG.trace("ConnectionPoolImpl::housekeep() finished");
+        }
+    }
+
+    private void checkIdleConnection(PooledConnection pooledConnection, long currentTime) {
+        if (pooledConnection.getGeneration() != generation.get()) {
+            LOG.debug("Connection belongs to an evicted generation, closing");
+            pooledConnection.setState(PooledConnection.STATE_EVICTING);
+            retireConnection(pooledConnection, false);
+        } else if (currentTime >= pooledConnection.getExpirationTime()) {
+            if (LOG.isDebugEnabled()) {
+                long aliveTime = currentTime - pooledConnection.getCreationTime();
+                LOG.debug("Connection time to live is over, created at [{}], current [{}], alive time [{} s], TTL [{} s]",
+                        FORMAT.format(Instant.ofEpochMilli(pooledConnection.getCreationTime())),
+                        FORMAT.format(Instant.ofEpochMilli(currentTime)),
+                        aliveTime / 1000.0,
+                        connectionTTL / 1000.0);
+            }
+            pooledConnection.setState(PooledConnection.STATE_EVICTING);
+            poolMetrics.connectionExpired();
+            retireConnection(pooledConnection, true);
+        } else if (idleTimeout > 0
+                && currentTime - pooledConnection.getLastAccessTime() > idleTimeout
+                && (pooledConnection.getConnectionPartition() != defaultPartition || countIdle(defaultPartition) >= getTargetIdle())) {
+            LOG.debug("Connection has been idle for more than {} ms, closing", idleTimeout);
+            pooledConnection.setState(PooledConnection.STATE_EVICTING);
+            retireConnection(pooledConnection, false);
+        } else if (!isValid(pooledConnection)) {
+            LOG.debug("Connection has failed the validation, closing and creating new");
+            pooledConnection.setState(PooledConnection.STATE_EVICTING);
+            retireConnection(pooledConnection, true);
+        } else {
+            pooledConnection.setState(PooledConnection.STATE_IN_USE);
+            handOver(pooledConnection);
+        }
+    }
+
+    /**
+     * Adjusts the size limit of an adaptively sized pool. Idle connections above a lowered limit are closed,
+     * waiters get new connections in the slots of a raised limit.
+     */
+    private void resize() {
+        try {
+            LOG.trace("ConnectionPoolImpl::resize() started");
+
+            int currentLimit = poolSizeLimit;
+            int limit = adaptivePoolSizer.resize(currentLimit, countWaiters(), poolMetrics.getAcquireTime(), poolMetrics.getUsageTime());
+            if (limit == currentLimit) {
+                return;
+            }
+            LOG.debug("Changing the pool size limit from {} to {}", currentLimit, limit);
+            poolSizeLimit = limit;
+            if (limit > currentLimit) {
+                for (ConnectionPartition partition : partitions) {
+                    if (partition.hasWaiters()) {
+                        requestConnections(partition);
+                    }
+                }
+            } else {
+                closeIdleAboveLimit();
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Resizing has failed:", e);
+        } finally {
+            LOG.trace("ConnectionPoolImpl::resize() finished");
+        }
+    }
+
+    private void closeIdleAboveLimit() {
+        for (ConnectionPartition partition : partitions) {
+            PooledConnection pooledConnection;
+            while (connectionNumber.get() > poolSizeLimit && !closed && (pooledConnection = partition.claimIdle()) != null) {
+                pooledConnection.setState(PooledConnection.STATE_EVICTING);
+                retireConnection(pooledConnection, false);
+            }
+        }
+    }
+
+    /**
+     * Reports the connections which have been borrowed for longer than the leak detection threshold, once per borrow,
+     * and reclaims them if configured. A reclaimed borrow is revoked, so only the borrow which has leaked is ended
+     * even if it has been closed and the connection borrowed again while being reported.
+     */
+    private void detectLeaks() {
+        try {
+            LOG.trace("ConnectionPoolImpl::detectLeaks() started");
+
+            long now = System.nanoTime();
+            for (ConnectionPartition partition : partitions) {
+                for (PooledConnection pooledConnection : partition.getConnections()) {
+                    // the lease is read first: while it stays the same the borrow time belongs to its borrow
+                    long lease = pooledConnection.getLease();
+                    long borrowTime = pooledConnection.getTrackedBorrowTime();
+                    if (lease == 0
+                            || borrowTime == 0
+                            || now - borrowTime < leakDetectionThresholdNanos
+                            || pooledConnection.getReportedBorrowTime() == borrowTime
+                            || pooledConnection.getState() != PooledConnection.STATE_IN_USE) {
+                        continue;
+                    }
+                    pooledConnection.setReportedBorrowTime(borrowTime);
+                    poolMetrics.connectionLeaked();
+                    reportLeak(pooledConnection, now - borrowTime);
+                    if (reclaimLeakedConnections
+                            && pooledConnection.revoke(lease)
+                            && pooledConnection.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_EVICTING)) {
+                        LOG.warn("Reclaiming the leaked connection");
+                        retireConnection(pooledConnection, true);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Leak detection has failed:", e);
         } finally {
-            LOG.trace("ConnectionPoolImpl::closeIfTTLOver(PooledConnection pooledConnection) finished");
+            LOG.trace("ConnectionPoolImpl::detectLeaks() finished");
+        }
+    }
+
+    private void reportLeak(PooledConnection pooledConnection, long borrowedNanos) {
+        if (!LOG.isWarnEnabled()) {
+            return;
+        }
+        Thread borrower = pooledConnection.getBorrower();
+        Throwable stackTrace = pooledConnection.getBorrowSite();
+        if (stackTrace == null && borrower != null && borrower.isAlive()) {
+            stackTrace = new Throwable("Current stack of the borrowing thread");
+            stackTrace.setStackTrace(borrower.getStackTrace());
+        }
+        LOG.warn("Connection has been borrowed by thread {} for {} ms, possible leak:",
+                borrower != null ? borrower.getName() : null,
+                TimeUnit.NANOSECONDS.toMillis(borrowedNanos),
+                stackTrace);
+    }
+
+    private void maintainMinIdle() {
+        int missing = getTargetIdle() - countIdle(defaultPartition) - defaultPartition.getPendingCreations();
+        for (int i = 0; i < missing && !closed && reserveSlot(); i++) {
+            defaultPartition.incrementPendingCreations();
+            submitConnection(defaultPartition);
+        }
+    }
+
+    private static int countIdle(ConnectionPartition partition) {
+        int idle = 0;
+        for (PooledConnection pooledConnection : partition.getConnections()) {
+            if (pooledConnection.getState() == PooledConnection.STATE_IDLE) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    private boolean isValid(PooledConnection pooledConnection) {
+        try {
+            return pooledConnection.getUnderlyingConnection().isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            LOG.debug("Failed to validate a connection:", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection which is in the evicting state. Its slot is either used for a replacement connection
+     * opened by the adder or freed.
+     */
+    private void retireConnection(PooledConnection pooledConnection, boolean replace) {
+        ConnectionPartition partition = pooledConnection.getConnectionPartition();
+        if (!partition.remove(pooledConnection)) {
+            return;
+        }
+        closeUnderlyingConnection(pooledConnection);
+        if (replace && !closed) {
+            partition.incrementPendingCreations();
+            submitConnection(partition);
+        } else {
+            releaseSlot();
+        }
+    }
+
+    private void evictPooledConnection(PooledConnection pooledConnection) {
+        if (pooledConnection.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_EVICTING)) {
+            closePooledConnection(pooledConnection);
         }
     }
 
     private void closePooledConnection(PooledConnection pooledConnection) {
         LOG.trace("ConnectionPoolImpl::closePooledConnection(PooledConnection pooledConnection) started");
 
-        connectionNumber.decrementAndGet();
+        if (pooledConnection.getConnectionPartition().remove(pooledConnection)) {
+            releaseSlot();
+        }
+        closeUnderlyingConnection(pooledConnection);
 
+        LOG.trace("ConnectionPoolImpl::closePooledConnection(PooledConnection pooledConnection) finished");
+    }
+
+    private void closeUnderlyingConnection(PooledConnection pooledConnection) {
         try {
-            LOG.trace("ConnectionPoolImpl::closePooledConnection(PooledConnection pooledConnection) connection close started");
+            LOG.trace("ConnectionPoolImpl::closeUnderlyingConnection(PooledConnection pooledConnection) started");
+            poolMetrics.connectionEvicted();
+            pooledConnection.closeStatements();
             pooledConnection.getUnderlyingConnection().close();
         } catch (SQLException e) {
             LOG.debug("Failed to close pooled connection:", e);
         } finally {
-            LOG.trace("ConnectionPoolImpl::closePooledConnection(PooledConnection pooledConnection) connection close finished");
+            LOG.trace("ConnectionPoolImpl::closeUnderlyingConnection(PooledConnection pooledConnection) finished");
         }
-
-        LOG.trace("ConnectionPoolImpl::closePooledConnection(PooledConnection pooledConnection) finished");
     }
 
+    /**
+     * Returns a borrowed connection. The connection is handed over to the first waiter of its partition
+     * and becomes idle only if nobody is waiting for it. An expired connection is passed to the housekeeper
+     * which closes and replaces it, a connection of an evicted generation is closed by the housekeeper.
+     * A connection of a partition larger than a starving one is closed to make room for the starving partition.
+     */
     void returnConnection(PooledConnection pooledConnection) {
-        LOG.trace("ConnectionPoolImpl::returnConnection(PooledConnection pooledConnection) started");
+        if (pooledConnection.getState() == PooledConnection.STATE_IN_USE) {
+            onReturned(pooledConnection);
+            long currentTime = System.currentTimeMillis();
+            if (closed) {
+                evictPooledConnection(pooledConnection);
+            } else if (pooledConnection.getGeneration() != generation.get()) {
+                retireInBackground(pooledConnection, false);
+            } else if (currentTime >= pooledConnection.getExpirationTime()) {
+                poolMetrics.connectionExpired();
+                retireInBackground(pooledConnection, true);
+            } else if (starvingPartitions.get() > 0 && yieldToStarving(pooledConnection)) {
+                LOG.debug("Connection has been given up to a starving partition");
+            } else {
+                pooledConnection.setLastAccessTime(currentTime);
+                rememberThreadLocal(pooledConnection);
+                handOver(pooledConnection);
+            }
+        }
+    }
 
-        getPooledConnectionDeque(pooledConnection.getPooledConnectionKey()).add(pooledConnection);
-        activePooledConnections.remove(pooledConnection);
+    /**
+     * Closes a borrowed connection which cannot be used anymore, e.g. whose state has failed to be reset,
+     * and opens a replacement in the background.
+     */
+    void discardConnection(PooledConnection pooledConnection) {
+        LOG.trace("ConnectionPoolImpl::discardConnection(PooledConnection pooledConnection) started");
+
+        if (pooledConnection.getState() == PooledConnection.STATE_IN_USE) {
+            onReturned(pooledConnection);
+            if (closed) {
+                evictPooledConnection(pooledConnection);
+            } else {
+                retireInBackground(pooledConnection, true);
+            }
+        }
+
+        LOG.trace("ConnectionPoolImpl::discardConnection(PooledConnection pooledConnection) finished");
+    }
 
-        LOG.trace("ConnectionPoolImpl::returnConnection(PooledConnection pooledConnection) finished");
+    private void retireInBackground(PooledConnection pooledConnection, boolean replace) {
+        if (pooledConnection.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_EVICTING)) {
+            submitRetirement(pooledConnection, replace);
+        }
+    }
+
+    /**
+     * Passes a connection in the evicting state to the housekeeper, so closing it, which may hang against
+     * a dead database, never runs on the calling thread. The connection is closed right away if the pool
+     * is shutting down.
+     */
+    private void submitRetirement(PooledConnection pooledConnection, boolean replace) {
+        try {
+            housekeeper.execute(() -> retireConnection(pooledConnection, replace));
+        } catch (RejectedExecutionException e) {
+            retireConnection(pooledConnection, false);
+        }
+    }
+
+    private void handOver(PooledConnection pooledConnection) {
+        ConnectionPartition partition = pooledConnection.getConnectionPartition();
+        do {
+            ConnectionWaiter waiter;
+            while ((waiter = partition.pollWaiter()) != null) {
+                if (waiter.offer(pooledConnection)) {
+                    return;
+                }
+            }
+            pooledConnection.setState(PooledConnection.STATE_IDLE);
+        } while (partition.hasWaiters()
+                && pooledConnection.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+/**
+ * JMX view of {@link PoolMetrics}. Latencies are flattened to a few percentiles in milliseconds,
+ * so any JMX client can read and alert on them without custom types.
+ */
+public interface ConnectionPoolMXBean {
+    String getPoolName();
+
+    int getMaxPoolSize();
+
+    int getPoolSizeLimit();
+
+    int getTotalConnections();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getPendingThreads();
+
+    long getCreatedConnections();
+
+    long getEvictedConnections();
+
+    long getExpiredConnections();
+
+    long getLeakedConnections();
+
+    double getAcquireTimeMeanMillis();
+
+    double getAcquireTime50thPercentileMillis();
+
+    double getAcquireTime99thPercentileMillis();
+
+    double getAcquireTimeMaxMillis();
+
+    double getUsageTimeMeanMillis();
+
+    double getUsageTime50thPercentileMillis();
+
+    double getUsageTime99thPercentileMillis();
+
+    double getUsageTimeMaxMillis();
+}
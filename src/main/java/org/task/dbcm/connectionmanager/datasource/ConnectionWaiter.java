@@ -0,0 +1,67 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread parked in the queue of a partition until a connection becomes available.
+ * <p>
+ * Whoever returns or opens a connection hands it over directly to the first waiter in the queue, so a woken
+ * waiter never competes for it again. A waiter accepts exactly one connection. A cancelled waiter (timed out,
+ * interrupted) rejects every hand-over, so a connection is never handed to a thread which is gone.
+ * <p>
+ * Subclasses wait without a thread, e.g. for an asynchronous borrow, and react to the hand-over and to the closing
+ * of the pool themselves.
+ */
+class ConnectionWaiter {
+    private static final Object CANCELLED = new Object();
+
+    private final Thread thread;
+    private final AtomicReference<Object> handoff = new AtomicReference<>();
+
+    ConnectionWaiter(Thread thread) {
+        this.thread = thread;
+    }
+
+    boolean offer(PooledConnection pooledConnection) {
+        if (handoff.compareAndSet(null, pooledConnection)) {
+            handedOver(pooledConnection);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called on the handing over thread once the waiter has accepted the connection.
+     */
+    void handedOver(PooledConnection pooledConnection) {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Called when the pool is closed while the waiter is still in the queue.
+     */
+    void poolClosed() {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return the handed over connection or null if nothing has been handed over yet
+     */
+    PooledConnection getConnection() {
+        Object value = handoff.get();
+        return value instanceof PooledConnection ? (PooledConnection) value : null;
+    }
+
+    /**
+     * Cancels the waiter so it does not accept any further hand-over.
+     *
+     * @return null if the waiter was cancelled or the connection which has been handed over before the cancellation
+     */
+    PooledConnection cancel() {
+        if (handoff.compareAndSet(null, CANCELLED)) {
+            return null;
+        }
+        return getConnection();
+    }
+}
@@ -0,0 +1,380 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A prepared statement which reports every execution to the query instrumentation of the pool under its SQL text,
+ * normalized once when the statement is prepared, along with the exception of a failed execution. The rows of a query are counted by its result set if the query
+ * statistics are enabled, a batch is reported as one execution with the sum of its update counts.
+ * <p>
+ * For the slow query log the statement keeps the bind values set through the value setters. Streams set without
+ * a length are kept as stream objects, the other stream and LOB setters are not captured. The values reported
+ * for a batch are the last ones set.
+ */
+final class InstrumentedPreparedStatement extends DelegatingPreparedStatement {
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final QueryInstrumentation queryInstrumentation;
+    private final PooledConnection connection;
+    private final Connection handle;
+    private final String sql;
+    private final String normalizedSql;
+
+    /**
+     * Bind values indexed from 0, null if the bind values are not captured.
+     */
+    private Object[] parameters;
+    private RowCountingResultSet resultSet;
+
+    InstrumentedPreparedStatement(PreparedStatement underlyingStatement,
+                                  QueryInstrumentation queryInstrumentation,
+                                  PooledConnection connection,
+                                  Connection handle,
+                                  String sql) {
+        super(underlyingStatement);
+        this.queryInstrumentation = queryInstrumentation;
+        this.connection = connection;
+        this.handle = handle;
+        this.sql = sql;
+        this.normalizedSql = queryInstrumentation.normalize(sql);
+        this.parameters = queryInstrumentation.capturesParameters() ? NO_PARAMETERS : null;
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            ResultSet underlyingResultSet = super.executeQuery();
+            failed = false;
+            return countRows(underlyingResultSet);
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeUpdate();
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeLargeUpdate();
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasResultSet = super.execute();
+            failed = false;
+            return hasResultSet;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet underlyingResultSet = super.getResultSet();
+        if (underlyingResultSet == null) {
+            return null;
+        }
+        if (resultSet != null && resultSet.wraps(underlyingResultSet)) {
+            return resultSet;
+        }
+        return countRows(underlyingResultSet);
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            int[] updateCounts = super.executeBatch();
+            failed = false;
+            for (int updateCount : updateCounts) {
+                rows += Math.max(0, updateCount);
+            }
+            return updateCounts;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            long[] updateCounts = super.executeLargeBatch();
+            failed = false;
+            for (long updateCount : updateCounts) {
+                rows += Math.max(0, updateCount);
+            }
+            return updateCounts;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, parameters, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        super.setNull(parameterIndex, sqlType);
+        capture(parameterIndex, null);
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        super.setBoolean(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        super.setByte(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        super.setShort(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        super.setInt(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        super.setLong(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        super.setFloat(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        super.setDouble(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        super.setBigDecimal(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        super.setString(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        super.setBytes(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        super.setDate(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        super.setTime(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        super.setTimestamp(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        super.setObject(parameterIndex, x, targetSqlType);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        super.setObject(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        super.setDate(parameterIndex, x, cal);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        super.setTime(parameterIndex, x, cal);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        super.setTimestamp(parameterIndex, x, cal);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        super.setNull(parameterIndex, sqlType, typeName);
+        capture(parameterIndex, null);
+    }
+
+    @Override
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        super.setURL(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String value) throws SQLException {
+        super.setNString(parameterIndex, value);
+        capture(parameterIndex, value);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+        super.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        super.setAsciiStream(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        super.setBinaryStream(parameterIndex, x);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        super.setCharacterStream(parameterIndex, reader);
+        capture(parameterIndex, reader);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+        super.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+        super.setObject(parameterIndex, x, targetSqlType);
+        capture(parameterIndex, x);
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        super.clearParameters();
+        if (parameters != null) {
+            parameters = NO_PARAMETERS;
+        }
+    }
+
+    @Override
+    public Connection getConnection() {
+        return handle;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            if (resultSet != null) {
+                resultSet.recordRows();
+            }
+        }
+    }
+
+    private ResultSet countRows(ResultSet underlyingResultSet) {
+        QueryStatistics queryStatistics = queryInstrumentation.getQueryStatistics();
+        if (queryStatistics == null) {
+            return underlyingResultSet;
+        }
+        if (resultSet != null) {
+            resultSet.recordRows();
+        }
+        resultSet = new RowCountingResultSet(underlyingResultSet, this, queryStatistics, normalizedSql);
+        return resultSet;
+    }
+
+    private void capture(int parameterIndex, Object value) {
+        if (parameters == null || parameterIndex < 1) {
+            return;
+        }
+        if (parameterIndex > parameters.length) {
+            parameters = Arrays.copyOf(parameters, parameterIndex);
+        }
+        parameters[parameterIndex - 1] = value;
+    }
+}
@@ -0,0 +1,371 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A statement which reports every execution to the query instrumentation of the pool: the time of the execute call,
+ * whether it has failed, the update count and the exception of a failed execution. The rows of a query are counted by its result set if the query
+ * statistics are enabled. A batch is reported under the first SQL text added to it.
+ */
+final class InstrumentedStatement extends DelegatingStatement {
+    private final QueryInstrumentation queryInstrumentation;
+    private final PooledConnection connection;
+    private final Connection handle;
+
+    private String lastSql;
+    private String batchSql;
+    private RowCountingResultSet resultSet;
+
+    InstrumentedStatement(Statement underlyingStatement,
+                          QueryInstrumentation queryInstrumentation,
+                          PooledConnection connection,
+                          Connection handle) {
+        super(underlyingStatement);
+        this.queryInstrumentation = queryInstrumentation;
+        this.connection = connection;
+        this.handle = handle;
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        lastSql = normalizedSql;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            ResultSet underlyingResultSet = super.executeQuery(sql);
+            failed = false;
+            return countRows(underlyingResultSet, normalizedSql);
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeUpdate(sql);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeUpdate(sql, autoGeneratedKeys);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeUpdate(sql, columnIndexes);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeUpdate(sql, columnNames);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeLargeUpdate(sql);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeLargeUpdate(sql, autoGeneratedKeys);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeLargeUpdate(sql, columnIndexes);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            rows = super.executeLargeUpdate(sql, columnNames);
+            failed = false;
+            return rows;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        lastSql = normalizedSql;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasResultSet = super.execute(sql);
+            failed = false;
+            return hasResultSet;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        lastSql = normalizedSql;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasResultSet = super.execute(sql, autoGeneratedKeys);
+            failed = false;
+            return hasResultSet;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        lastSql = normalizedSql;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasResultSet = super.execute(sql, columnIndexes);
+            failed = false;
+            return hasResultSet;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        String normalizedSql = queryInstrumentation.normalize(sql);
+        lastSql = normalizedSql;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasResultSet = super.execute(sql, columnNames);
+            failed = false;
+            return hasResultSet;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(connection, sql, normalizedSql, null, System.nanoTime() - startTime, 0, failed);
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet underlyingResultSet = super.getResultSet();
+        if (underlyingResultSet == null || lastSql == null) {
+            return underlyingResultSet;
+        }
+        if (resultSet != null && resultSet.wraps(underlyingResultSet)) {
+            return resultSet;
+        }
+        return countRows(underlyingResultSet, lastSql);
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        super.addBatch(sql);
+        if (batchSql == null) {
+            batchSql = sql;
+        }
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        super.clearBatch();
+        batchSql = null;
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        String sql = batchSql;
+        batchSql = null;
+        if (sql == null) {
+            return super.executeBatch();
+        }
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            int[] updateCounts = super.executeBatch();
+            failed = false;
+            for (int updateCount : updateCounts) {
+                rows += Math.max(0, updateCount);
+            }
+            return updateCounts;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(
+                    connection, sql, queryInstrumentation.normalize(sql), null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        String sql = batchSql;
+        batchSql = null;
+        if (sql == null) {
+            return super.executeLargeBatch();
+        }
+        long startTime = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try {
+            long[] updateCounts = super.executeLargeBatch();
+            failed = false;
+            for (long updateCount : updateCounts) {
+                rows += Math.max(0, updateCount);
+            }
+            return updateCounts;
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(connection, e);
+            throw e;
+        } finally {
+            queryInstrumentation.recordExecution(
+                    connection, sql, queryInstrumentation.normalize(sql), null, System.nanoTime() - startTime, rows, failed);
+        }
+    }
+
+    @Override
+    public Connection getConnection() {
+        return handle;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            if (resultSet != null) {
+                resultSet.recordRows();
+            }
+        }
+    }
+
+    private ResultSet countRows(ResultSet underlyingResultSet, String normalizedSql) {
+        QueryStatistics queryStatistics = queryInstrumentation.getQueryStatistics();
+        if (queryStatistics == null) {
+            return underlyingResultSet;
+        }
+        if (resultSet != null) {
+            resultSet.recordRows();
+        }
+        resultSet = new RowCountingResultSet(underlyingResultSet, this, queryStatistics, normalizedSql);
+        return resultSet;
+    }
+}
@@ -0,0 +1,63 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+/**
+ * A point-in-time copy of a latency histogram. All values are in nanoseconds. Percentiles are reported as the upper
+ * bound of the histogram bucket they fall into, so they are never lower than the real value by more than
+ * the bucket precision and never higher than the maximum recorded value.
+ */
+public final class LatencySnapshot {
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencySnapshot(long[] buckets, long count, long sum, long max) {
+        this.buckets = buckets;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile a percentile between 0 and 100
+     * @return the value below which the given percentage of the recorded values falls or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySnapshot{count=" + count
+                + ", mean=" + (long) getMean()
+                + ", p50=" + getPercentile(50)
+                + ", p99=" + getPercentile(99)
+                + ", max=" + max + '}';
+    }
+}
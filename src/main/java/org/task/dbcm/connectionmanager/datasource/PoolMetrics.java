@@ -0,0 +1,65 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.util.List;
+
+/**
+ * Live metrics of one connection pool. Gauges reflect the state of the pool at the moment of the call,
+ * counters and histograms accumulate since the pool has been created.
+ */
+public interface PoolMetrics {
+    String getPoolName();
+
+    int getMaxPoolSize();
+
+    /**
+     * @return current maximum number of connections, which is below the maximum pool size only with adaptive sizing
+     */
+    int getPoolSizeLimit();
+
+    /**
+     * @return number of open connections including the ones being opened
+     */
+    int getTotalConnections();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    /**
+     * @return number of threads waiting for a connection
+     */
+    int getPendingThreads();
+
+    long getCreatedConnections();
+
+    /**
+     * @return number of physical connections closed by the pool for any reason
+     */
+    long getEvictedConnections();
+
+    /**
+     * @return number of connections retired because their time to live was over
+     */
+    long getExpiredConnections();
+
+    /**
+     * @return number of borrows which have held a connection longer than the leak detection threshold
+     */
+    long getLeakedConnections();
+
+    /**
+     * @return time the callers of getConnection have waited for a connection
+     */
+    LatencySnapshot getAcquireTime();
+
+    /**
+     * @return time between borrowing and returning a connection
+     */
+    LatencySnapshot getUsageTime();
+
+    /**
+     * @return statistics per normalized SQL text ordered by total execution time, empty unless the query statistics
+     * are enabled in the config
+     */
+    List<QueryStatistic> getQueryStatistics();
+}
@@ -0,0 +1,204 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of {@link ConnectionPoolImpl}. Counters and histograms are updated by the pool on its hot path, so they
+ * are striped adders and lock-free histograms. Gauges are not stored at all: they are computed from the pool state
+ * when they are read.
+ */
+final class PoolMetricsImpl implements PoolMetrics, ConnectionPoolMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(PoolMetricsImpl.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.task.dbcm:type=ConnectionPool,name=";
+
+    private final String poolName;
+    private final ConnectionPoolImpl connectionPool;
+
+    private final LongAdder createdConnections = new LongAdder();
+    private final LongAdder evictedConnections = new LongAdder();
+    private final LongAdder expiredConnections = new LongAdder();
+    private final LongAdder leakedConnections = new LongAdder();
+    private final LatencyHistogram acquireTime = new LatencyHistogram();
+    private final LatencyHistogram usageTime = new LatencyHistogram();
+
+    private volatile ObjectName objectName;
+
+    PoolMetricsImpl(String poolName, ConnectionPoolImpl connectionPool) {
+        this.poolName = poolName;
+        this.connectionPool = connectionPool;
+    }
+
+    void connectionCreated() {
+        createdConnections.increment();
+    }
+
+    void connectionEvicted() {
+        evictedConnections.increment();
+    }
+
+    void connectionExpired() {
+        expiredConnections.increment();
+    }
+
+    void connectionLeaked() {
+        leakedConnections.increment();
+    }
+
+    void recordAcquireTime(long nanos) {
+        acquireTime.record(nanos);
+    }
+
+    void recordUsageTime(long nanos) {
+        usageTime.record(nanos);
+    }
+
+    void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(poolName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.debug("Failed to register the MBean of pool {}:", poolName, e);
+        }
+    }
+
+    void unregisterMBean() {
+        ObjectName name = objectName;
+        if (name == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOG.debug("Failed to unregister the MBean of pool {}:", poolName, e);
+        }
+    }
+
+    @Override
+    public String getPoolName() {
+        return poolName;
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return connectionPool.getMaxPoolSize();
+    }
+
+    @Override
+    public int getPoolSizeLimit() {
+        return connectionPool.getPoolSizeLimit();
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return connectionPool.getTotalConnections();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connectionPool.countConnections(PooledConnection.STATE_IN_USE);
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return connectionPool.countConnections(PooledConnection.STATE_IDLE);
+    }
+
+    @Override
+    public int getPendingThreads() {
+        return connectionPool.countWaiters();
+    }
+
+    @Override
+    public long getCreatedConnections() {
+        return createdConnections.sum();
+    }
+
+    @Override
+    public long getEvictedConnections() {
+        return evictedConnections.sum();
+    }
+
+    @Override
+    public long getExpiredConnections() {
+        return expiredConnections.sum();
+    }
+
+    @Override
+    public long getLeakedConnections() {
+        return leakedConnections.sum();
+    }
+
+    @Override
+    public LatencySnapshot getAcquireTime() {
+        return acquireTime.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getUsageTime() {
+        return usageTime.snapshot();
+    }
+
+    @Override
+    public List<QueryStatistic> getQueryStatistics() {
+        return connectionPool.getQueryStatistics();
+    }
+
+    @Override
+    public double getAcquireTimeMeanMillis() {
+        return toMillis(getAcquireTime().getMean());
+    }
+
+    @Override
+    public double getAcquireTime50thPercentileMillis() {
+        return toMillis(getAcquireTime().getPercentile(50));
+    }
+
+    @Override
+    public double getAcquireTime99thPercentileMillis() {
+        return toMillis(getAcquireTime().getPercentile(99));
+    }
+
+    @Override
+    public double getAcquireTimeMaxMillis() {
+        return toMillis(getAcquireTime().getMax());
+    }
+
+    @Override
+    public double getUsageTimeMeanMillis() {
+        return toMillis(getUsageTime().getMean());
+    }
+
+    @Override
+    public double getUsageTime50thPercentileMillis() {
+        return toMillis(getUsageTime().getPercentile(50));
+    }
+
+    @Override
+    public double getUsageTime99thPercentileMillis() {
+        return toMillis(getUsageTime().getPercentile(99));
+    }
+
+    @Override
+    public double getUsageTimeMaxMillis() {
+        return toMillis(getUsageTime().getMax());
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -7,316 +7,607 @@ import java.sql.*;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A wrapper around a connection to delegate all calls to wrapped connection
- * and to return a connection to the on close method call.
+ * and to return a connection to the pool when its borrow is closed.
+ * <p>
+ * The same pooled connection serves every borrow of the physical connection, so it is never handed out itself.
+ * Every borrow gets its own {@link BorrowedConnection} carrying the lease of the borrow: a handle whose borrow
+ * has been closed fails every call and its repeated close does nothing, even if the connection has been borrowed
+ * again in the meantime.
+ * <p>
+ * Every pooled connection carries its own atomic state which is used by the pool to claim
+ * the connection without any global lock: a connection is handed out only to the caller
+ * which managed to switch its state from {@link #STATE_IDLE} to {@link #STATE_IN_USE}. The pool housekeeper
+ * switches idle connections to {@link #STATE_RESERVED} while it checks them.
+ * <p>
+ * With the statement cache enabled prepared statements without generated keys are served from a per-connection
+ * LRU cache and closing them returns them to the cache.
+ * <p>
+ * With the query statistics or the slow query log enabled statements and prepared statements are wrapped into
+ * instrumented statements which report every execution to the pool.
+ * <p>
+ * Changes of the auto-commit mode, read-only flag, transaction isolation, catalog, schema and network timeout made
+ * through the wrapper are tracked with dirty bits. When the connection is closed an open transaction is rolled back
+ * and only the changed properties are restored to the values the physical connection had, so a borrower which
+ * changes nothing costs no extra calls. The auto-commit mode is read when the connection is opened, the other values
+ * right before the first change of the property during the life of the physical connection. A connection whose
+ * state cannot be reset is discarded instead of returned, so is a connection which has raised a connection error.
  */
-final class PooledConnection implements Connection {
+final class PooledConnection {
     private static final Logger LOG = LoggerFactory.getLogger(PooledConnection.class);
 
-    private final PooledConnectionKey pooledConnectionKey;
+    static final int STATE_IDLE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_EVICTING = 2;
+    static final int STATE_RESERVED = 3;
+
+    private static final int DIRTY_AUTO_COMMIT = 1;
+    private static final int DIRTY_READ_ONLY = 1 << 1;
+    private static final int DIRTY_TRANSACTION_ISOLATION = 1 << 2;
+    private static final int DIRTY_CATALOG = 1 << 3;
+    private static final int DIRTY_SCHEMA = 1 << 4;
+    private static final int DIRTY_NETWORK_TIMEOUT = 1 << 5;
+
+    private final ConnectionPartition connectionPartition;
     private final long creationTime;
+    private final long expirationTime;
+    private final int generation;
     private final ConnectionPoolImpl connectionPool;
 
     private final Connection underlyingConnection;
+    private final StatementCache statementCache;
+    private final QueryInstrumentation queryInstrumentation;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_IN_USE);
+    /**
+     * Incremented by every borrow and by the first close of the borrow, so the handle of a borrow which has ended
+     * never matches it again.
+     */
+    private final AtomicLong lease = new AtomicLong();
+    private volatile long lastAccessTime;
+    /**
+     * Set by the borrowing thread before the connection is handed out. The borrow time is read when the connection
+     * is returned, the time the borrower has waited for the connection by the slow query log.
+     */
+    private long borrowTime;
+    private long acquireTime;
+    /**
+     * Written by the borrowing thread only when the leak detection is enabled. The volatile borrow time publishes
+     * the borrower and the borrow site to the housekeeper, 0 means the connection is not tracked.
+     */
+    private Thread borrower;
+    private Throwable borrowSite;
+    private volatile long trackedBorrowTime;
+    /**
+     * The borrow time of the last leak report, used only by the housekeeper.
+     */
+    private long reportedBorrowTime;
+
+    /**
+     * Connection state used only by the borrowing thread, the hand-over of the connection publishes it.
+     */
+    private final boolean defaultAutoCommit;
+    private boolean autoCommit;
+    private int dirtyBits;
+    private int capturedBits;
+    private boolean defaultReadOnly;
+    private int defaultTransactionIsolation;
+    private String defaultCatalog;
+    private String defaultSchema;
+    private int defaultNetworkTimeout;
+    private Executor networkTimeoutExecutor;
+    /**
+     * Set when a statement or a transaction call has failed with a connection error, the connection is discarded
+     * instead of returned then.
+     */
+    private boolean broken;
 
     PooledConnection(
-            PooledConnectionKey pooledConnectionKey,
+            ConnectionPartition connectionPartition,
             long creationTime,
+            long expirationTime,
+            int generation,
             ConnectionPoolImpl connectionPool,
 
-            Connection underlyingConnection) {
-        this.pooledConnectionKey = pooledConnectionKey;
+            Connection underlyingConnection,
+            boolean autoCommit,
+            int statementCacheSize,
+            QueryInstrumentation queryInstrumentation) {
+        this.connectionPartition = connectionPartition;
         this.creationTime = creationTime;
+        this.expirationTime = expirationTime;
+        this.generation = generation;
+        this.lastAccessTime = creationTime;
         this.connectionPool = connectionPool;
 
         this.underlyingConnection = underlyingConnection;
+        this.defaultAutoCommit = autoCommit;
+        this.autoCommit = autoCommit;
+        this.statementCache = statementCacheSize > 0 ? new StatementCache(statementCacheSize) : null;
+        this.queryInstrumentation = queryInstrumentation;
     }
 
-    public PooledConnectionKey getPooledConnectionKey() {
-        return pooledConnectionKey;
+    ConnectionPartition getConnectionPartition() {
+        return connectionPartition;
     }
 
     public long getCreationTime() {
         return creationTime;
     }
 
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * @return the generation of the pool the connection has been opened in
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    void setLastAccessTime(long lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    long getBorrowTime() {
+        return borrowTime;
+    }
+
+    void markBroken() {
+        broken = true;
+    }
+
+    long getAcquireTime() {
+        return acquireTime;
+    }
+
+    void setBorrowTime(long borrowTime, long acquireTime) {
+        this.borrowTime = borrowTime;
+        this.acquireTime = acquireTime;
+    }
+
+    void trackBorrow(Thread borrower, Throwable borrowSite, long borrowTime) {
+        this.borrower = borrower;
+        this.borrowSite = borrowSite;
+        this.trackedBorrowTime = borrowTime;
+    }
+
+    void untrackBorrow() {
+        trackedBorrowTime = 0;
+        borrower = null;
+        borrowSite = null;
+    }
+
+    long getTrackedBorrowTime() {
+        return trackedBorrowTime;
+    }
+
+    Thread getBorrower() {
+        return borrower;
+    }
+
+    Throwable getBorrowSite() {
+        return borrowSite;
+    }
+
+    long getReportedBorrowTime() {
+        return reportedBorrowTime;
+    }
+
+    void setReportedBorrowTime(long reportedBorrowTime) {
+        this.reportedBorrowTime = reportedBorrowTime;
+    }
+
     public Connection getUnderlyingConnection() {
         return underlyingConnection;
     }
 
-    @Override
-    public void close() {
-        try {
-            LOG.trace("PooledConnection::close() started");
-            connectionPool.returnConnection(this);
-        } finally {
-            LOG.trace("PooledConnection::close() finished");
+    /**
+     * Closes the cached statements physically, called before the underlying connection is closed.
+     */
+    void closeStatements() {
+        if (statementCache != null) {
+            statementCache.close();
+        }
+    }
+
+    private PreparedStatement prepareCached(StatementCacheKey statementCacheKey, Connection handle) throws SQLException {
+        PreparedStatement statement = statementCache.take(statementCacheKey);
+        if (statement == null) {
+            statement = statementCacheKey.prepare(underlyingConnection);
+        }
+        return new CachedPreparedStatement(statement, statementCacheKey, statementCache, handle);
+    }
+
+    private Statement instrument(Statement statement, Connection handle) {
+        return queryInstrumentation.isEnabled()
+                ? new InstrumentedStatement(statement, queryInstrumentation, this, handle)
+                : statement;
+    }
+
+    private PreparedStatement instrument(PreparedStatement statement, String sql, Connection handle) {
+        return queryInstrumentation.isEnabled()
+                ? new InstrumentedPreparedStatement(statement, queryInstrumentation, this, handle, sql)
+                : statement;
+    }
+
+    /**
+     * Rolls back an open transaction and restores the properties changed by the borrower.
+     */
+    private void resetState() throws SQLException {
+        if (!autoCommit) {
+            underlyingConnection.rollback();
+        }
+        if (dirtyBits == 0) {
+            return;
+        }
+        if ((dirtyBits & DIRTY_AUTO_COMMIT) != 0 && autoCommit != defaultAutoCommit) {
+            underlyingConnection.setAutoCommit(defaultAutoCommit);
+            autoCommit = defaultAutoCommit;
+        }
+        if ((dirtyBits & DIRTY_READ_ONLY) != 0) {
+            underlyingConnection.setReadOnly(defaultReadOnly);
+        }
+        if ((dirtyBits & DIRTY_TRANSACTION_ISOLATION) != 0) {
+            underlyingConnection.setTransactionIsolation(defaultTransactionIsolation);
+        }
+        if ((dirtyBits & DIRTY_CATALOG) != 0) {
+            underlyingConnection.setCatalog(defaultCatalog);
+        }
+        if ((dirtyBits & DIRTY_SCHEMA) != 0) {
+            underlyingConnection.setSchema(defaultSchema);
+        }
+        if ((dirtyBits & DIRTY_NETWORK_TIMEOUT) != 0) {
+            underlyingConnection.setNetworkTimeout(networkTimeoutExecutor, defaultNetworkTimeout);
+            networkTimeoutExecutor = null;
+        }
+        dirtyBits = 0;
+    }
+
+    /**
+     * @return true if the default value of the property has to be read before its first change
+     */
+    private boolean capture(int bit) {
+        if ((capturedBits & bit) != 0) {
+            return false;
+        }
+        capturedBits |= bit;
+        return true;
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    boolean compareAndSetState(int expectedState, int newState) {
+        return state.compareAndSet(expectedState, newState);
+    }
+
+    void setState(int newState) {
+        state.set(newState);
+    }
+
+    /**
+     * Starts a new borrow, called by the borrowing thread once it has claimed the connection. The lease of a borrow
+     * in progress is odd, closing or revoking the borrow makes it even.
+     *
+     * @return the lease of the borrow
+     */
+    long lease() {
+        return lease.incrementAndGet();
+    }
+
+    /**
+     * @return the lease of the borrow in progress or 0 if the connection is not borrowed
+     */
+    long getLease() {
+        long current = lease.get();
+        return (current & 1) != 0 ? current : 0;
+    }
+
+    /**
+     * Ends the borrow of the lease without returning the connection, e.g. when the pool reclaims a leaked one.
+     * A later close of the borrow does nothing.
+     *
+     * @return true if the borrow had not been closed yet
+     */
+    boolean revoke(long lease) {
+        return this.lease.compareAndSet(lease, lease + 1);
+    }
+
+    /**
+     * @return true if the borrow of the lease has not been closed yet
+     */
+    boolean isLeased(long lease) {
+        return this.lease.get() == lease;
+    }
+
+    /**
+     * Ends the borrow of the lease and returns the connection to the pool. Only the first close of a borrow
+     * gets through, a repeated close, possibly after the connection has been borrowed again, does nothing.
+     */
+    void release(long lease) {
+        if (!this.lease.compareAndSet(lease, lease + 1)) {
+            return;
+        }
+        if (broken) {
+            LOG.debug("Connection has raised a connection error, discarding it");
+            connectionPool.discardConnection(this);
+            return;
+        }
+        if (getState() == STATE_IN_USE) {
+            try {
+                resetState();
+            } catch (SQLException | RuntimeException e) {
+                LOG.debug("Failed to reset the state of a connection, discarding it:", e);
+                connectionPool.discardConnection(this);
+                return;
+            }
         }
+        connectionPool.returnConnection(this);
     }
 
-    @Override
-    public Statement createStatement() throws SQLException {
-        return underlyingConnection.createStatement();
+    Statement createStatement(Connection handle) throws SQLException {
+        return instrument(underlyingConnection.createStatement(), handle);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return underlyingConnection.prepareStatement(sql);
+    PreparedStatement prepareStatement(Connection handle, String sql) throws SQLException {
+        if (statementCache != null) {
+            return instrument(prepareCached(new StatementCacheKey(
+                    sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, StatementCacheKey.DEFAULT_HOLDABILITY), handle), sql, handle);
+        }
+        return instrument(underlyingConnection.prepareStatement(sql), sql, handle);
     }
 
-    @Override
     public CallableStatement prepareCall(String sql) throws SQLException {
         return underlyingConnection.prepareCall(sql);
     }
 
-    @Override
     public String nativeSQL(String sql) throws SQLException {
         return underlyingConnection.nativeSQL(sql);
     }
 
-    @Override
     public void setAutoCommit(boolean autoCommit) throws SQLException {
         underlyingConnection.setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
+        dirtyBits |= DIRTY_AUTO_COMMIT;
     }
 
-    @Override
     public boolean getAutoCommit() throws SQLException {
         return underlyingConnection.getAutoCommit();
     }
 
-    @Override
     public void commit() throws SQLException {
-        underlyingConnection.commit();
+        try {
+            underlyingConnection.commit();
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(this, e);
+            throw e;
+        }
     }
 
-    @Override
     public void rollback() throws SQLException {
-        underlyingConnection.rollback();
+        try {
+            underlyingConnection.rollback();
+        } catch (SQLException e) {
+            queryInstrumentation.recordFailure(this, e);
+            throw e;
+        }
     }
 
-    @Override
     public boolean isClosed() throws SQLException {
         return underlyingConnection.isClosed();
     }
 
-    @Override
     public DatabaseMetaData getMetaData() throws SQLException {
         return underlyingConnection.getMetaData();
     }
 
-    @Override
     public void setReadOnly(boolean readOnly) throws SQLException {
+        if (capture(DIRTY_READ_ONLY)) {
+            defaultReadOnly = underlyingConnection.isReadOnly();
+        }
         underlyingConnection.setReadOnly(readOnly);
+        dirtyBits |= DIRTY_READ_ONLY;
     }
 
-    @Override
     public boolean isReadOnly() throws SQLException {
         return underlyingConnection.isReadOnly();
     }
 
-    @Override
     public void setCatalog(String catalog) throws SQLException {
+        if (capture(DIRTY_CATALOG)) {
+            defaultCatalog = underlyingConnection.getCatalog();
+        }
         underlyingConnection.setCatalog(catalog);
+        dirtyBits |= DIRTY_CATALOG;
     }
 
-    @Override
     public String getCatalog() throws SQLException {
         return underlyingConnection.getCatalog();
     }
 
-    @Override
     public void setTransactionIsolation(int level) throws SQLException {
+        if (capture(DIRTY_TRANSACTION_ISOLATION)) {
+            defaultTransactionIsolation = underlyingConnection.getTransactionIsolation();
+        }
         underlyingConnection.setTransactionIsolation(level);
+        dirtyBits |= DIRTY_TRANSACTION_ISOLATION;
     }
 
-    @Override
     public int getTransactionIsolation() throws SQLException {
         return underlyingConnection.getTransactionIsolation();
     }
 
-    @Override
     public SQLWarning getWarnings() throws SQLException {
         return underlyingConnection.getWarnings();
     }
 
-    @Override
     public void clearWarnings() throws SQLException {
         underlyingConnection.clearWarnings();
     }
 
-    @Override
-    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        return underlyingConnection.createStatement(resultSetType, resultSetConcurrency);
+    Statement createStatement(Connection handle, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return instrument(underlyingConnection.createStatement(resultSetType, resultSetConcurrency), handle);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    PreparedStatement prepareStatement(Connection handle, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        if (statementCache != null) {
+            return instrument(prepareCached(new StatementCacheKey(
+                    sql, resultSetType, resultSetConcurrency, StatementCacheKey.DEFAULT_HOLDABILITY), handle), sql, handle);
+        }
+        return instrument(underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency), sql, handle);
     }
 
-    @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
         return underlyingConnection.prepareCall(sql, resultSetType, resultSetConcurrency);
     }
 
-    @Override
     public Map<String, Class<?>> getTypeMap() throws SQLException {
         return underlyingConnection.getTypeMap();
     }
 
-    @Override
     public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
         underlyingConnection.setTypeMap(map);
     }
 
-    @Override
     public void setHoldability(int holdability) throws SQLException {
         underlyingConnection.setHoldability(holdability);
     }
 
-    @Override
     public int getHoldability() throws SQLException {
         return underlyingConnection.getHoldability();
     }
 
-    @Override
     public Savepoint setSavepoint() throws SQLException {
         return underlyingConnection.setSavepoint();
     }
 
-    @Override
     public Savepoint setSavepoint(String name) throws SQLException {
         return underlyingConnection.setSavepoint(name);
     }
 
-    @Override
     public void rollback(Savepoint savepoint) throws SQLException {
         underlyingConnection.rollback(savepoint);
     }
 
-    @Override
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
         underlyingConnection.releaseSavepoint(savepoint);
     }
 
-    @Override
-    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return underlyingConnection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    Statement createStatement(Connection handle, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return instrument(underlyingConnection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), handle);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    PreparedStatement prepareStatement(Connection handle, String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        if (statementCache != null) {
+            return instrument(prepareCached(new StatementCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability), handle), sql, handle);
+        }
+        return instrument(underlyingConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql, handle);
     }
 
-    @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
         return underlyingConnection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return underlyingConnection.prepareStatement(sql, autoGeneratedKeys);
+    PreparedStatement prepareStatement(Connection handle, String sql, int autoGeneratedKeys) throws SQLException {
+        return instrument(underlyingConnection.prepareStatement(sql, autoGeneratedKeys), sql, handle);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        return underlyingConnection.prepareStatement(sql, columnIndexes);
+    PreparedStatement prepareStatement(Connection handle, String sql, int[] columnIndexes) throws SQLException {
+        return instrument(underlyingConnection.prepareStatement(sql, columnIndexes), sql, handle);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        return underlyingConnection.prepareStatement(sql, columnNames);
+    PreparedStatement prepareStatement(Connection handle, String sql, String[] columnNames) throws SQLException {
+        return instrument(underlyingConnection.prepareStatement(sql, columnNames), sql, handle);
     }
 
-    @Override
     public Clob createClob() throws SQLException {
         return underlyingConnection.createClob();
     }
 
-    @Override
     public Blob createBlob() throws SQLException {
         return underlyingConnection.createBlob();
     }
 
-    @Override
     public NClob createNClob() throws SQLException {
         return underlyingConnection.createNClob();
     }
 
-    @Override
     public SQLXML createSQLXML() throws SQLException {
         return underlyingConnection.createSQLXML();
     }
 
-    @Override
     public boolean isValid(int timeout) throws SQLException {
         return underlyingConnection.isValid(timeout);
     }
 
-    @Override
     public void setClientInfo(String name, String value) throws SQLClientInfoException {
         underlyingConnection.setClientInfo(name, value);
     }
 
-    @Override
     public void setClientInfo(Properties properties) throws SQLClientInfoException {
         underlyingConnection.setClientInfo(properties);
     }
 
-    @Override
     public String getClientInfo(String name) throws SQLException {
         return underlyingConnection.getClientInfo(name);
     }
 
-    @Override
     public Properties getClientInfo() throws SQLException {
         return underlyingConnection.getClientInfo();
     }
 
-    @Override
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
         return underlyingConnection.createArrayOf(typeName, elements);
     }
 
-    @Override
     public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
         return underlyingConnection.createStruct(typeName, attributes);
     }
 
-    @Override
     public void setSchema(String schema) throws SQLException {
+        if (capture(DIRTY_SCHEMA)) {
+            defaultSchema = underlyingConnection.getSchema();
+        }
         underlyingConnection.setSchema(schema);
+        dirtyBits |= DIRTY_SCHEMA;
     }
 
-    @Override
     public String getSchema() throws SQLException {
         return underlyingConnection.getSchema();
     }
 
-    @Override
     public void abort(Executor executor) throws SQLException {
         underlyingConnection.abort(executor);
     }
 
-    @Override
     public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        if (capture(DIRTY_NETWORK_TIMEOUT)) {
+            defaultNetworkTimeout = underlyingConnection.getNetworkTimeout();
+        }
         underlyingConnection.setNetworkTimeout(executor, milliseconds);
+        networkTimeoutExecutor = executor;
+        dirtyBits |= DIRTY_NETWORK_TIMEOUT;
     }
 
-    @Override
     public int getNetworkTimeout() throws SQLException {
         return underlyingConnection.getNetworkTimeout();
     }
 
-    @Override
     public <T> T unwrap(Class<T> iface) throws SQLException {
         return underlyingConnection.unwrap(iface);
     }
 
-    @Override
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
         return underlyingConnection.isWrapperFor(iface);
     }
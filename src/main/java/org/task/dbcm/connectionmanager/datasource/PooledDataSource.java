@@ -1,3 +1,57 @@
 package org.task.dbcm.connectionmanager.datasource;
 
-public interface PooledDataSource extends CloseableDataSource {}
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+public interface PooledDataSource extends CloseableDataSource {
+    /**
+     * Borrows a connection without blocking. The future is completed on the thread which returns or opens
+     * the connection, so dependent stages should not block.
+     *
+     * @see ConnectionPool#getConnectionAsync(Executor)
+     */
+    CompletableFuture<Connection> getConnectionAsync();
+
+    /**
+     * Borrows a connection without blocking, the future is completed on the given executor.
+     *
+     * @see ConnectionPool#getConnectionAsync(Executor)
+     */
+    CompletableFuture<Connection> getConnectionAsync(Executor executor);
+
+    /**
+     * @see ConnectionPool#setConnectionErrorListener(Consumer)
+     */
+    void setConnectionErrorListener(Consumer<SQLException> connectionErrorListener);
+
+    /**
+     * @see ConnectionPool#setQueryTimeListener(LongConsumer)
+     */
+    void setQueryTimeListener(LongConsumer queryTimeListener);
+
+    PoolMetrics getPoolMetrics();
+
+    /**
+     * @see ConnectionPool#evictAll()
+     */
+    void evictAll();
+
+    /**
+     * @see ConnectionPool#softEvict()
+     */
+    void softEvict();
+
+    /**
+     * @see ConnectionPool#setStandby(boolean)
+     */
+    void setStandby(boolean standby);
+
+    /**
+     * @see ConnectionPool#openDedicatedConnection()
+     */
+    Connection openDedicatedConnection() throws SQLException;
+}
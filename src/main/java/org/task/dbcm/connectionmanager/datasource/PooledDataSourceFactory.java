@@ -10,11 +10,24 @@ public class PooledDataSourceFactory {
     }
 
     public PooledDataSource createPooledDataSource(CloseableDataSource closeableDataSource, ConnectionPoolConfig connectionPoolConfig) {
-        ConnectionPool connectionPool = new ConnectionPoolImpl(
+        ConnectionPoolImpl connectionPool = new ConnectionPoolImpl(
                 closeableDataSource::getConnection,
                 closeableDataSource::getConnection,
-                connectionPoolConfig.getConnectionTTL(),
-                connectionPoolConfig.getMaxPoolSize());
+                connectionPoolConfig);
+        prefill(connectionPool, connectionPoolConfig);
         return new PooledDataSourceImpl(closeableDataSource, connectionPool);
     }
+
+    private void prefill(ConnectionPoolImpl connectionPool, ConnectionPoolConfig connectionPoolConfig) {
+        switch (connectionPoolConfig.getPrefill()) {
+            case BLOCKING:
+                connectionPool.fill(connectionPoolConfig.getMinIdle()).join();
+                break;
+            case ASYNC:
+                connectionPool.fill(connectionPoolConfig.getMinIdle());
+                break;
+            default:
+                break;
+        }
+    }
 }
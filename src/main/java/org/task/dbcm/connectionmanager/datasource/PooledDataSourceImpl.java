@@ -7,6 +7,10 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -15,7 +19,8 @@ import java.util.logging.Logger;
  * Uses given ConnectionPool to store created connections and return them by request. If the connection pool is empty
  * and no connections were created a connection is created using the call to the underlying data source and adding created connection to the pool.
  * <p>
- * Calls to getConnection may block the calling thread because there might be no available connection to use.
+ * Calls to getConnection may block the calling thread because there might be no available connection to use,
+ * getConnectionAsync returns a future instead which is completed once a connection is available.
  */
 final class PooledDataSourceImpl implements PooledDataSource {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(PooledDataSourceImpl.class);
@@ -30,24 +35,79 @@ final class PooledDataSourceImpl implements PooledDataSource {
 
     @Override
     public Connection getConnection() throws SQLException {
+        return connectionPool.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return connectionPool.getConnection(username, password);
+    }
+
+    @Override
+    public void setConnectionErrorListener(Consumer<SQLException> connectionErrorListener) {
+        connectionPool.setConnectionErrorListener(connectionErrorListener);
+    }
+
+    @Override
+    public void setQueryTimeListener(LongConsumer queryTimeListener) {
+        connectionPool.setQueryTimeListener(queryTimeListener);
+    }
+
+    @Override
+    public PoolMetrics getPoolMetrics() {
+        return connectionPool.getPoolMetrics();
+    }
+
+    @Override
+    public void evictAll() {
         try {
-            LOG.trace("PooledDataSourceImpl::getConnection() started");
-            return connectionPool.getConnection();
+            LOG.trace("PooledDataSourceImpl::evictAll() started");
+            connectionPool.evictAll();
         } finally {
-            LOG.trace("PooledDataSourceImpl::getConnection() finished");
+            LOG.trace("PooledDataSourceImpl::evictAll() finished");
         }
     }
 
     @Override
-    public Connection getConnection(String username, String password) throws SQLException {
+    public void softEvict() {
         try {
-            LOG.trace("PooledDataSourceImpl::getConnection(String username, String password) started");
-            return connectionPool.getConnection(username, password);
+            LOG.trace("PooledDataSourceImpl::softEvict() started");
+            connectionPool.softEvict();
         } finally {
-            LOG.trace("PooledDataSourceImpl::getConnection(String username, String password) finished");
+            LOG.trace("PooledDataSourceImpl::softEvict() finished");
         }
     }
 
+    @Override
+    public void setStandby(boolean standby) {
+        try {
+            LOG.trace("PooledDataSourceImpl::setStandby(boolean standby) started");
+            connectionPool.setStandby(standby);
+        } finally {
+            LOG.trace("PooledDataSourceImpl::setStandby(boolean standby) finished");
+        }
+    }
+
+    @Override
+    public Connection openDedicatedConnection() throws SQLException {
+        try {
+            LOG.trace("PooledDataSourceImpl::openDedicatedConnection() started");
+            return connectionPool.openDedicatedConnection();
+        } finally {
+            LOG.trace("PooledDataSourceImpl::openDedicatedConnection() finished");
+        }
+    }
+
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync() {
+        return connectionPool.getConnectionAsync(null);
+    }
+
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync(Executor executor) {
+        return connectionPool.getConnectionAsync(Objects.requireNonNull(executor, "Executor cannot be null"));
+    }
+
     @Override
     public PrintWriter getLogWriter() throws SQLException {
         try {
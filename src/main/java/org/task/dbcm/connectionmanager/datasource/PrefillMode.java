@@ -0,0 +1,19 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+/**
+ * Defines how a pooled data source opens its first {@code minIdle} connections when it is created.
+ */
+public enum PrefillMode {
+    /**
+     * Connections are opened lazily by the first callers and by the housekeeper.
+     */
+    NONE,
+    /**
+     * Connections are opened in parallel and the creation of the data source waits until all of them are ready.
+     */
+    BLOCKING,
+    /**
+     * Connections are opened in parallel in the background while the data source is already in use.
+     */
+    ASYNC
+}
@@ -0,0 +1,104 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.SQLException;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The recorders the instrumented statements of one pool report their executions to: the query statistics,
+ * the slow query log, the connection error listener and the query time listener. Statements are instrumented only if at least one of them
+ * is enabled, work needed only by a disabled recorder, like the normalization of the SQL text or the capture
+ * of bind values, is skipped.
+ * <p>
+ * A connection error raised by a statement marks its connection as broken, so the connection is discarded
+ * when it is closed, and is passed on to the connection error listener.
+ */
+final class QueryInstrumentation {
+    private final QueryStatistics queryStatistics;
+    private final SlowQueryLog slowQueryLog;
+    private volatile Consumer<SQLException> connectionErrorListener;
+    private volatile LongConsumer queryTimeListener;
+
+    QueryInstrumentation(QueryStatistics queryStatistics, SlowQueryLog slowQueryLog) {
+        this.queryStatistics = queryStatistics;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * @return true if statements have to be instrumented
+     */
+    boolean isEnabled() {
+        return queryStatistics != null || slowQueryLog != null || connectionErrorListener != null || queryTimeListener != null;
+    }
+
+    /**
+     * @param connectionErrorListener the listener or null to remove it
+     */
+    void setConnectionErrorListener(Consumer<SQLException> connectionErrorListener) {
+        this.connectionErrorListener = connectionErrorListener;
+    }
+
+    /**
+     * @param queryTimeListener the listener or null to remove it
+     */
+    void setQueryTimeListener(LongConsumer queryTimeListener) {
+        this.queryTimeListener = queryTimeListener;
+    }
+
+    /**
+     * Marks the connection as broken and notifies the listener if the exception is a connection error.
+     */
+    void recordFailure(PooledConnection pooledConnection, SQLException e) {
+        if (!ConnectionErrors.isConnectionError(e)) {
+            return;
+        }
+        pooledConnection.markBroken();
+        Consumer<SQLException> listener = connectionErrorListener;
+        if (listener != null) {
+            listener.accept(e);
+        }
+    }
+
+    /**
+     * @return the query statistics or null if they are disabled
+     */
+    QueryStatistics getQueryStatistics() {
+        return queryStatistics;
+    }
+
+    /**
+     * @return true if prepared statements have to keep their bind values for the slow query log
+     */
+    boolean capturesParameters() {
+        return slowQueryLog != null;
+    }
+
+    /**
+     * @return the normalized SQL text or null if the query statistics are disabled
+     */
+    String normalize(String sql) {
+        return queryStatistics != null ? SqlNormalizer.normalize(sql) : null;
+    }
+
+    /**
+     * @param parameters bind values indexed from 0 or null if there are none
+     */
+    void recordExecution(PooledConnection pooledConnection,
+                         String sql,
+                         String normalizedSql,
+                         Object[] parameters,
+                         long nanos,
+                         long rows,
+                         boolean failed) {
+        if (queryStatistics != null) {
+            queryStatistics.recordExecution(normalizedSql, nanos, rows, failed);
+        }
+        if (slowQueryLog != null) {
+            slowQueryLog.record(sql, parameters, pooledConnection.getAcquireTime(), nanos, failed);
+        }
+        LongConsumer listener = queryTimeListener;
+        if (listener != null && !failed) {
+            listener.accept(nanos);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+/**
+ * A point-in-time copy of the statistics of one normalized SQL text. Times are in nanoseconds and cover
+ * the execute calls, rows are the rows read from the result sets of queries or the update counts of other statements.
+ */
+public final class QueryStatistic {
+    private final String sql;
+    private final long executions;
+    private final long errors;
+    private final long rows;
+    private final long totalTime;
+    private final long maxTime;
+
+    QueryStatistic(String sql, long executions, long errors, long rows, long totalTime, long maxTime) {
+        this.sql = sql;
+        this.executions = executions;
+        this.errors = errors;
+        this.rows = rows;
+        this.totalTime = totalTime;
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * @return the SQL text with literals replaced by placeholders
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    public long getExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return number of executions which have thrown an exception
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public double getMeanTime() {
+        return executions == 0 ? 0 : (double) totalTime / executions;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryStatistic{sql='" + sql + '\''
+                + ", executions=" + executions
+                + ", errors=" + errors
+                + ", rows=" + rows
+                + ", totalTime=" + totalTime
+                + ", mean=" + (long) getMeanTime()
+                + ", max=" + maxTime + '}';
+    }
+}
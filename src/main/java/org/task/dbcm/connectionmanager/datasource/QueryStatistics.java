@@ -0,0 +1,114 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the statements executed through one pool, aggregated per normalized SQL text.
+ * <p>
+ * Every text has its own striped adders, so recording an execution never blocks. The number of texts is bounded:
+ * when a text not seen before pushes the size over the maximum, the entry with the lowest total time is dropped,
+ * so the statistics converge to the queries which hold connections the longest. Finding that entry scans
+ * all entries, which is cheap as long as the normalization folds the literals of the workload.
+ */
+final class QueryStatistics {
+    private static final Comparator<QueryStatistic> BY_TOTAL_TIME =
+            Comparator.comparingLong(QueryStatistic::getTotalTime).reversed();
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    QueryStatistics(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param sql normalized SQL text
+     */
+    void recordExecution(String sql, long nanos, long rows, boolean failed) {
+        Entry entry = entries.get(sql);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(sql, key -> new Entry());
+            if (entries.size() > maxSize) {
+                dropCheapest(entry);
+            }
+        }
+        entry.record(nanos, rows, failed);
+    }
+
+    /**
+     * Adds the rows read after the execution. The rows are lost if the entry has been dropped in the meantime.
+     *
+     * @param sql normalized SQL text
+     */
+    void recordRows(String sql, long rows) {
+        Entry entry = entries.get(sql);
+        if (entry != null) {
+            entry.rows.add(rows);
+        }
+    }
+
+    /**
+     * @return statistics of all kept SQL texts ordered by total time, the most expensive first
+     */
+    List<QueryStatistic> snapshot() {
+        List<QueryStatistic> statistics = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            statistics.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        statistics.sort(BY_TOTAL_TIME);
+        return statistics;
+    }
+
+    private void dropCheapest(Entry added) {
+        String cheapestSql = null;
+        Entry cheapest = null;
+        long cheapestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry candidate = entry.getValue();
+            if (candidate == added) {
+                continue;
+            }
+            long totalTime = candidate.totalTime.sum();
+            if (totalTime < cheapestTime) {
+                cheapestSql = entry.getKey();
+                cheapest = candidate;
+                cheapestTime = totalTime;
+            }
+        }
+        if (cheapest != null) {
+            entries.remove(cheapestSql, cheapest);
+        }
+    }
+
+    private static final class Entry {
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos, long rows, boolean failed) {
+            long value = Math.max(0, nanos);
+            executions.increment();
+            if (failed) {
+                errors.increment();
+            }
+            if (rows > 0) {
+                this.rows.add(rows);
+            }
+            totalTime.add(value);
+            maxTime.accumulate(value);
+        }
+
+        QueryStatistic snapshot(String sql) {
+            return new QueryStatistic(sql, executions.sum(), errors.sum(), rows.sum(), totalTime.sum(), maxTime.get());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A result set of an instrumented statement which counts the rows read with {@link #next()}. The count is recorded
+ * in the query statistics once, when the result set is exhausted or closed, or when its statement is closed.
+ * Rows reached by scrolling are not counted.
+ */
+final class RowCountingResultSet extends DelegatingResultSet {
+    private final ResultSet underlyingResultSet;
+    private final Statement statement;
+    private final QueryStatistics queryStatistics;
+    private final String sql;
+
+    private long rows;
+    private boolean recorded;
+
+    RowCountingResultSet(ResultSet underlyingResultSet, Statement statement, QueryStatistics queryStatistics, String sql) {
+        super(underlyingResultSet);
+        this.underlyingResultSet = underlyingResultSet;
+        this.statement = statement;
+        this.queryStatistics = queryStatistics;
+        this.sql = sql;
+    }
+
+    /**
+     * @return true if this result set wraps the given one
+     */
+    boolean wraps(ResultSet resultSet) {
+        return underlyingResultSet == resultSet;
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        boolean hasRow = super.next();
+        if (hasRow) {
+            rows++;
+        } else {
+            recordRows();
+        }
+        return hasRow;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            recordRows();
+        }
+    }
+
+    @Override
+    public Statement getStatement() {
+        return statement;
+    }
+
+    void recordRows() {
+        if (!recorded) {
+            recorded = true;
+            queryStatistics.recordRows(sql, rows);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes slow and sampled statement executions of one pool to the log without delaying the executing thread.
+ * <p>
+ * An execution is logged when it has taken at least the threshold or, regardless of its time, when it is one of
+ * the sampled executions. The executing thread only copies the bind values and offers the entry to a bounded queue
+ * without blocking; an entry which does not fit is dropped and counted. A daemon thread takes the entries from
+ * the queue, formats them and writes them at info level along with a warning about the entries dropped before them.
+ * The entries go to the dedicated {@value #LOGGER_NAME} logger, so the log can be switched on and off without
+ * changing the level of the pool loggers. Nothing is recorded while the info level of that logger is disabled.
+ * Every entry carries the pool and the node the statement has run on, the time the borrower has waited
+ * for the connection and the time of the execution.
+ */
+final class SlowQueryLog {
+    static final String LOGGER_NAME = "org.task.dbcm.slowquery";
+
+    private static final Logger LOG = LoggerFactory.getLogger(LOGGER_NAME);
+
+    private static final int MAX_VALUE_LENGTH = 100;
+
+    private final String poolName;
+    private final String nodeName;
+    private final long thresholdNanos;
+    private final int sampling;
+    private final BlockingQueue<SlowQuery> queue;
+    private final AtomicLong droppedEntries = new AtomicLong();
+    private final Thread writer;
+
+    SlowQueryLog(String poolName, String nodeName, long thresholdMillis, int sampling, int capacity) {
+        this.poolName = poolName;
+        this.nodeName = nodeName;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampling = sampling;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.writer = new Thread(this::writeEntries, "ConnectionPool-slow-query-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @param parameters bind values indexed from 0 or null if there are none, copied if the execution is logged
+     */
+    void record(String sql, Object[] parameters, long acquireNanos, long executionNanos, boolean failed) {
+        boolean slow = thresholdNanos > 0 && executionNanos >= thresholdNanos;
+        if (!LOG.isInfoEnabled() || !slow && (sampling <= 0 || ThreadLocalRandom.current().nextInt(sampling) != 0)) {
+            return;
+        }
+        SlowQuery slowQuery = new SlowQuery(
+                sql,
+                parameters != null ? parameters.clone() : null,
+                acquireNanos,
+                executionNanos,
+                failed,
+                slow);
+        if (!queue.offer(slowQuery)) {
+            droppedEntries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops the writer thread once it has written the entries already in the queue.
+     */
+    void close() {
+        writer.interrupt();
+    }
+
+    private void writeEntries() {
+        try {
+            while (true) {
+                write(queue.take());
+            }
+        } catch (InterruptedException e) {
+            SlowQuery slowQuery;
+            while ((slowQuery = queue.poll()) != null) {
+                write(slowQuery);
+            }
+        }
+    }
+
+    private void write(SlowQuery slowQuery) {
+        long dropped = droppedEntries.getAndSet(0);
+        if (dropped > 0) {
+            LOG.warn("{} slow query log entries of pool {} have been dropped, the queue was full", dropped, poolName);
+        }
+        LOG.info("{} query on pool {}, node {}: waited {} ms for the connection, executed {} ms{}, SQL [{}], parameters {}",
+                slowQuery.slow ? "Slow" : "Sampled",
+                poolName,
+                nodeName,
+                toMillis(slowQuery.acquireNanos),
+                toMillis(slowQuery.executionNanos),
+                slowQuery.failed ? " and failed" : "",
+                slowQuery.sql,
+                formatParameters(slowQuery.parameters));
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String formatParameters(Object[] parameters) {
+        if (parameters == null) {
+            return "[]";
+        }
+        StringBuilder formatted = new StringBuilder("[");
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) {
+                formatted.append(", ");
+            }
+            formatted.append(i + 1).append('=');
+            formatValue(formatted, parameters[i]);
+        }
+        return formatted.append(']').toString();
+    }
+
+    private static void formatValue(StringBuilder formatted, Object value) {
+        if (value == null) {
+            formatted.append("null");
+        } else if (value instanceof byte[]) {
+            formatted.append("byte[").append(((byte[]) value).length).append(']');
+        } else if (value instanceof InputStream || value instanceof Reader) {
+            formatted.append('<').append(value.getClass().getSimpleName()).append('>');
+        } else if (value instanceof CharSequence) {
+            String text = value.toString();
+            formatted.append('\'');
+            if (text.length() > MAX_VALUE_LENGTH) {
+                formatted.append(text, 0, MAX_VALUE_LENGTH).append("...");
+            } else {
+                formatted.append(text);
+            }
+            formatted.append('\'');
+        } else {
+            formatted.append(value);
+        }
+    }
+
+    private static final class SlowQuery {
+        private final String sql;
+        private final Object[] parameters;
+        private final long acquireNanos;
+        private final long executionNanos;
+        private final boolean failed;
+        private final boolean slow;
+
+        SlowQuery(String sql, Object[] parameters, long acquireNanos, long executionNanos, boolean failed, boolean slow) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.acquireNanos = acquireNanos;
+            this.executionNanos = executionNanos;
+            this.failed = failed;
+            this.slow = slow;
+        }
+    }
+}
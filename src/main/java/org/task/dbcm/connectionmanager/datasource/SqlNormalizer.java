@@ -0,0 +1,143 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+/**
+ * Normalizes SQL texts for the query statistics, so statements which differ only in their values share an entry.
+ * <p>
+ * String and numeric literals become {@code ?}, comments are dropped, whitespace is collapsed to single spaces and
+ * lists of placeholders, like the ones of IN lists, are folded into one placeholder. Quoted identifiers and
+ * the case of the text are kept. The normalizer is a single pass over the text and does not parse the SQL,
+ * so dialect specific literals, e.g. dollar quoted strings, may stay in the text.
+ */
+final class SqlNormalizer {
+    private static final char PLACEHOLDER = '?';
+
+    private SqlNormalizer() {
+    }
+
+    static String normalize(String sql) {
+        int length = sql.length();
+        StringBuilder normalized = new StringBuilder(length);
+        boolean space = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                space = true;
+                i = skipLineComment(sql, i);
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                space = true;
+                i = skipBlockComment(sql, i);
+            } else if (c == '\'') {
+                space = appendPlaceholder(normalized, space);
+                i = skipQuoted(sql, i, '\'');
+            } else if (c == PLACEHOLDER) {
+                space = appendPlaceholder(normalized, space);
+                i++;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+                space = appendPlaceholder(normalized, space);
+                i = skipNumber(sql, i);
+            } else {
+                int end;
+                if (c == '"' || c == '`') {
+                    end = skipQuoted(sql, i, c);
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    end = skipIdentifier(sql, i);
+                } else {
+                    end = i + 1;
+                }
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                space = false;
+                normalized.append(sql, i, end);
+                i = end;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Appends a placeholder or folds it into the previous one if only a comma separates them.
+     *
+     * @return the pending space flag after the placeholder
+     */
+    private static boolean appendPlaceholder(StringBuilder normalized, boolean space) {
+        int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ',') {
+            int previous = end - 2;
+            if (previous >= 0 && normalized.charAt(previous) == ' ') {
+                previous--;
+            }
+            if (previous >= 0 && normalized.charAt(previous) == PLACEHOLDER) {
+                normalized.setLength(previous + 1);
+                return false;
+            }
+        }
+        if (space && end > 0) {
+            normalized.append(' ');
+        }
+        normalized.append(PLACEHOLDER);
+        return false;
+    }
+
+    private static int skipLineComment(String sql, int start) {
+        int end = sql.indexOf('\n', start);
+        return end < 0 ? sql.length() : end + 1;
+    }
+
+    private static int skipBlockComment(String sql, int start) {
+        int end = sql.indexOf("*/", start + 2);
+        return end < 0 ? sql.length() : end + 2;
+    }
+
+    /**
+     * @return the index after the closing quote, a doubled quote is an escaped quote inside the literal
+     */
+    private static int skipQuoted(String sql, int start, char quote) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    /**
+     * Skips a decimal, exponent or hexadecimal literal. Letters are consumed as well, so a suffix never starts
+     * an identifier of its own.
+     */
+    private static int skipNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '.') {
+                i++;
+            } else if ((c == '+' || c == '-') && (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E')) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int skipIdentifier(String sql, int start) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length && Character.isJavaIdentifierPart(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,137 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An LRU cache of prepared statements of one physical connection.
+ * <p>
+ * The cache holds only statements which are not in use: a statement is taken out of the cache when it is handed
+ * out and put back when its wrapper is closed, so two callers preparing the same SQL never share a statement.
+ * The least recently returned statement is closed physically when the cache is full. The connection is used
+ * by one thread at a time, so the lock is practically never contended; it only guards against statements closed
+ * after their connection has been returned.
+ */
+final class StatementCache {
+    private static final Logger LOG = LoggerFactory.getLogger(StatementCache.class);
+
+    private final int maxSize;
+    private final Map<StatementCacheKey, PreparedStatement> statements = new LinkedHashMap<>();
+    private final Lock lock = new ReentrantLock();
+    private boolean closed;
+
+    StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a cached statement removed from the cache or null if there is no open statement for the key
+     */
+    PreparedStatement take(StatementCacheKey key) {
+        PreparedStatement statement;
+        lock.lock();
+        try {
+            statement = statements.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        if (statement != null && isClosed(statement)) {
+            return null;
+        }
+        return statement;
+    }
+
+    /**
+     * Puts a statement which is not in use anymore back to the cache. The open result set of the statement is closed,
+     * so its cursor does not outlive the wrapper, and the parameters, the pending batch and the warnings are cleared. The statement is closed physically if it cannot be reset,
+     * if the cache is closed or if it pushes the least recently used statement out.
+     */
+    void release(StatementCacheKey key, PreparedStatement statement) {
+        try {
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+        } catch (SQLException e) {
+            LOG.debug("Failed to reset a cached statement:", e);
+            closeStatement(statement);
+            return;
+        }
+
+        PreparedStatement evicted = null;
+        lock.lock();
+        try {
+            if (closed) {
+                evicted = statement;
+            } else {
+                PreparedStatement previous = statements.put(key, statement);
+                if (previous != null && previous != statement) {
+                    evicted = previous;
+                } else if (statements.size() > maxSize) {
+                    Iterator<PreparedStatement> eldest = statements.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            closeStatement(evicted);
+        }
+    }
+
+    /**
+     * Closes a statement which cannot be reused physically instead of returning it to the cache.
+     */
+    void discard(PreparedStatement statement) {
+        closeStatement(statement);
+    }
+
+    /**
+     * Closes all cached statements physically. Statements released afterwards are closed right away.
+     */
+    void close() {
+        PreparedStatement[] cached;
+        lock.lock();
+        try {
+            closed = true;
+            cached = statements.values().toArray(new PreparedStatement[0]);
+            statements.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (PreparedStatement statement : cached) {
+            closeStatement(statement);
+        }
+    }
+
+    private static boolean isClosed(PreparedStatement statement) {
+        try {
+            return statement.isClosed();
+        } catch (SQLException e) {
+            LOG.debug("Failed to check a cached statement:", e);
+            return true;
+        }
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.debug("Failed to close a cached statement:", e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Objects;
+
+/**
+ * A key of a cached prepared statement: the SQL text along with the result set options the statement
+ * has been prepared with.
+ */
+final class StatementCacheKey {
+    /**
+     * Holdability of statements prepared without an explicit holdability, the driver default is used for them.
+     */
+    static final int DEFAULT_HOLDABILITY = -1;
+
+    private final String sql;
+    private final int resultSetType;
+    private final int resultSetConcurrency;
+    private final int resultSetHoldability;
+    private final int hashCode;
+
+    StatementCacheKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+        this.sql = Objects.requireNonNull(sql, "SQL cannot be null");
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.resultSetHoldability = resultSetHoldability;
+        this.hashCode = Objects.hash(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    PreparedStatement prepare(Connection connection) throws SQLException {
+        return resultSetHoldability == DEFAULT_HOLDABILITY
+                ? connection.prepareStatement(sql, resultSetType, resultSetConcurrency)
+                : connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof StatementCacheKey) && equals((StatementCacheKey) obj);
+    }
+
+    private boolean equals(StatementCacheKey that) {
+        return resultSetType == that.resultSetType
+                && resultSetConcurrency == that.resultSetConcurrency
+                && resultSetHoldability == that.resultSetHoldability
+                && sql.equals(that.sql);
+    }
+}
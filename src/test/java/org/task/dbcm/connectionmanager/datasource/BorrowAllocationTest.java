@@ -0,0 +1,78 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures the bytes allocated by the borrowing thread per borrow and return of a connection with the thread
+ * allocation counter of {@link com.sun.management.ThreadMXBean}. After a warm-up the borrow/return path must
+ * allocate nothing but the handle every borrow gets.
+ */
+class BorrowAllocationTest {
+    private static final int WARM_UP_BORROWS = 200_000;
+    private static final int MEASURED_BORROWS = 100_000;
+    /**
+     * The size of the borrow handle without compressed references, with them it takes 24 bytes.
+     */
+    private static final int MAX_BYTES_PER_BORROW = 32;
+
+    @Test
+    void borrowAllocatesNothingButTheHandle() throws SQLException {
+        assertAllocationPerBorrow(ConnectionPoolConfig.builder(), null);
+    }
+
+    @Test
+    void borrowWithCredentialsAllocatesNothingButTheHandle() throws SQLException {
+        assertAllocationPerBorrow(ConnectionPoolConfig.builder(), "user");
+    }
+
+    @Test
+    void borrowWithThreadAffinityAllocatesNothingButTheHandle() throws SQLException {
+        assertAllocationPerBorrow(ConnectionPoolConfig.builder().threadAffinity(true), null);
+    }
+
+    private static void assertAllocationPerBorrow(ConnectionPoolConfig.ConnectionPoolConfigBuilder configBuilder,
+                                                  String username) throws SQLException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean, "thread allocation counter is not available");
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported(), "thread allocation counter is not supported");
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        PooledDataSource pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(new StubDataSource(),
+                configBuilder
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(4)
+                        .registerMBean(false)
+                        .build());
+        try {
+            long threadId = Thread.currentThread().getId();
+            borrowAndReturn(pooledDataSource, username, WARM_UP_BORROWS);
+            long before = allocationMXBean.getThreadAllocatedBytes(threadId);
+            borrowAndReturn(pooledDataSource, username, MEASURED_BORROWS);
+            long allocated = allocationMXBean.getThreadAllocatedBytes(threadId) - before;
+
+            assertTrue(allocated <= (long) MAX_BYTES_PER_BORROW * MEASURED_BORROWS,
+                    allocated + " bytes allocated by " + MEASURED_BORROWS + " borrows");
+        } finally {
+            pooledDataSource.close();
+        }
+    }
+
+    private static void borrowAndReturn(PooledDataSource pooledDataSource, String username, int borrows) throws SQLException {
+        for (int i = 0; i < borrows; i++) {
+            Connection connection = username != null
+                    ? pooledDataSource.getConnection(username, "password")
+                    : pooledDataSource.getConnection();
+            connection.close();
+        }
+    }
+}
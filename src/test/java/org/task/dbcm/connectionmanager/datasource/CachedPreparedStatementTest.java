@@ -0,0 +1,87 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachedPreparedStatementTest {
+    private static final StatementCacheKey KEY = new StatementCacheKey(
+            "select 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.HOLD_CURSORS_OVER_COMMIT);
+
+    private final StatementCache statementCache = new StatementCache(4);
+    private final List<boolean[]> resultSets = new ArrayList<>();
+    private final boolean[] statementClosed = {false};
+    private final PreparedStatement underlyingStatement = stubStatement();
+
+    @Test
+    void closeClosesTheOpenResultSetAndCachesTheStatement() throws SQLException {
+        CachedPreparedStatement statement = new CachedPreparedStatement(underlyingStatement, KEY, statementCache, null);
+        statement.executeQuery();
+
+        statement.close();
+
+        assertTrue(resultSets.get(0)[0], "result set is closed");
+        assertFalse(statementClosed[0]);
+        assertSame(underlyingStatement, statementCache.take(KEY));
+    }
+
+    @Test
+    void closeAfterKeepingResultsOpenClosesTheStatement() throws SQLException {
+        CachedPreparedStatement statement = new CachedPreparedStatement(underlyingStatement, KEY, statementCache, null);
+        statement.executeQuery();
+        statement.getMoreResults(Statement.KEEP_CURRENT_RESULT);
+
+        statement.close();
+
+        assertTrue(statementClosed[0]);
+        assertNull(statementCache.take(KEY));
+    }
+
+    private PreparedStatement stubStatement() {
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "executeQuery":
+                            resultSets.add(new boolean[1]);
+                            return stubResultSet(resultSets.get(resultSets.size() - 1));
+                        case "getResultSet":
+                            return resultSets.isEmpty() ? null : stubResultSet(resultSets.get(resultSets.size() - 1));
+                        case "getMoreResults":
+                            return false;
+                        case "close":
+                            statementClosed[0] = true;
+                            return null;
+                        case "isClosed":
+                            return statementClosed[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private ResultSet stubResultSet(boolean[] closed) {
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closed[0] = true;
+                            return null;
+                        case "isClosed":
+                            return closed[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,149 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolImplTest {
+    private static final long CONNECTION_TIMEOUT = 200;
+    private static final long WAIT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final StubDataSource stubDataSource = new StubDataSource();
+    private PooledDataSource pooledDataSource;
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (pooledDataSource != null) {
+            pooledDataSource.close();
+        }
+    }
+
+    private PooledDataSource createPool(int maxPoolSize) {
+        pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(stubDataSource,
+                ConnectionPoolConfig.builder()
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(maxPoolSize)
+                        .connectionTimeout(CONNECTION_TIMEOUT)
+                        .registerMBean(false)
+                        .build());
+        return pooledDataSource;
+    }
+
+    @Test
+    void borrowTimesOutWhenAllConnectionsAreInUse() throws SQLException {
+        PooledDataSource pool = createPool(1);
+        try (Connection ignored = pool.getConnection()) {
+            long startTime = System.nanoTime();
+            SQLTransientConnectionException e = assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            assertTrue(elapsed >= CONNECTION_TIMEOUT, "waited " + elapsed + " ms");
+            assertNull(e.getCause());
+            assertEquals(1, pool.getPoolMetrics().getTotalConnections());
+        }
+    }
+
+    @Test
+    void returnedConnectionIsHandedOverToWaitersInArrivalOrder() throws Exception {
+        PooledDataSource pool = createPool(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> waiters = new ArrayList<>();
+
+        Connection held = pool.getConnection();
+        for (int i = 0; i < 3; i++) {
+            int waiter = i;
+            Thread thread = new Thread(() -> {
+                try (Connection ignored = pool.getConnection()) {
+                    order.add(waiter);
+                } catch (SQLException e) {
+                    order.add(-1);
+                }
+            });
+            thread.start();
+            waiters.add(thread);
+            await(() -> pool.getPoolMetrics().getPendingThreads() == waiter + 1);
+        }
+        held.close();
+        for (Thread thread : waiters) {
+            thread.join(WAIT_TIMEOUT);
+        }
+
+        assertEquals(List.of(0, 1, 2), order);
+    }
+
+    @Test
+    void softEvictRetiresConnectionsOfThePreviousGeneration() throws Exception {
+        PooledDataSource pool = createPool(2);
+        Connection idle = pool.getConnection();
+        Connection borrowed = pool.getConnection();
+        Connection idleUnderlying = underlying(idle);
+        Connection borrowedUnderlying = underlying(borrowed);
+        idle.close();
+
+        pool.softEvict();
+        await(idleUnderlying::isClosed);
+        assertFalse(borrowedUnderlying.isClosed(), "a borrowed connection is retired only once returned");
+        assertFalse(borrowed.isClosed());
+
+        borrowed.close();
+        await(borrowedUnderlying::isClosed);
+        try (Connection connection = pool.getConnection()) {
+            Connection underlying = underlying(connection);
+            assertNotSame(idleUnderlying, underlying);
+            assertNotSame(borrowedUnderlying, underlying);
+        }
+        await(() -> stubDataSource.getOpenConnections() == pool.getPoolMetrics().getTotalConnections());
+    }
+
+    @Test
+    void repeatedCloseDoesNotReturnTheConnectionOfTheNextBorrow() throws SQLException {
+        PooledDataSource pool = createPool(1);
+        Connection first = pool.getConnection();
+        first.close();
+        Connection second = pool.getConnection();
+        assertSame(underlying(first), underlying(second));
+        second.setAutoCommit(false);
+
+        first.close();
+
+        assertTrue(first.isClosed());
+        assertFalse(second.isClosed());
+        assertEquals(0, stubDataSource.getRollbacks());
+        assertThrows(SQLException.class, first::createStatement);
+        assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+        second.rollback();
+        second.close();
+    }
+
+    private static Connection underlying(Connection connection) {
+        return ((BorrowedConnection) connection).getPooledConnection().getUnderlyingConnection();
+    }
+
+    private static void await(Check check) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_TIMEOUT);
+        while (!check.test()) {
+            assertTrue(System.nanoTime() - deadline < 0, "condition has not been met in time");
+            Thread.sleep(1);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Check {
+        boolean test() throws Exception;
+    }
+}
@@ -0,0 +1,105 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A data source of connections which do not talk to any database. The connections are valid until closed
+ * and count the rollbacks they have been asked for.
+ */
+final class StubDataSource implements DataSource {
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger rollbacks = new AtomicInteger();
+
+    int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    int getRollbacks() {
+        return rollbacks.get();
+    }
+
+    @Override
+    public Connection getConnection() {
+        openConnections.incrementAndGet();
+        AtomicBoolean closed = new AtomicBoolean();
+        boolean[] autoCommit = {true};
+        return (Connection) Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (closed.compareAndSet(false, true)) {
+                                openConnections.decrementAndGet();
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed.get();
+                        case "isValid":
+                            return !closed.get();
+                        case "getAutoCommit":
+                            return autoCommit[0];
+                        case "setAutoCommit":
+                            autoCommit[0] = (Boolean) args[0];
+                            return null;
+                        case "rollback":
+                            rollbacks.incrementAndGet();
+                            return null;
+                        case "getTransactionIsolation":
+                            return Connection.TRANSACTION_READ_COMMITTED;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLException("Not a wrapper");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+package org.task.dbcm.connectionmanager.datasource;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Borrows connections on many more virtual threads than the pool has connections, so most of them wait,
+ * and counts the {@code jdk.VirtualThreadPinned} events recorded by JFR in the meantime. The sources are
+ * compiled for Java 11, so virtual threads are created through reflection and the test runs on Java 21 or later only.
+ */
+class VirtualThreadPinningTest {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final int BORROWERS = 2_000;
+
+    @Test
+    void waitingForAConnectionDoesNotPinTheCarrierThread() throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21 or later");
+
+        PooledDataSource pooledDataSource = new PooledDataSourceFactory().createPooledDataSource(new StubDataSource(),
+                ConnectionPoolConfig.builder()
+                        .connectionTTL(TimeUnit.HOURS.toMillis(1))
+                        .maxPoolSize(4)
+                        .connectionTimeout(TimeUnit.MINUTES.toMillis(1))
+                        .registerMBean(false)
+                        .build());
+        AtomicInteger failures = new AtomicInteger();
+        Path recordingFile = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO);
+            recording.start();
+
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            for (int i = 0; i < BORROWERS; i++) {
+                executor.execute(() -> borrow(pooledDataSource, failures));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+            recording.stop();
+            recording.dump(recordingFile);
+        } finally {
+            pooledDataSource.close();
+        }
+
+        List<RecordedEvent> pinnedEvents = RecordingFile.readAllEvents(recordingFile);
+        Files.delete(recordingFile);
+        assertEquals(0, failures.get());
+        assertEquals(List.of(), pinnedEvents);
+    }
+
+    private static void borrow(PooledDataSource pooledDataSource, AtomicInteger failures) {
+        try (Connection ignored = pooledDataSource.getConnection()) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+        }
+    }
+}